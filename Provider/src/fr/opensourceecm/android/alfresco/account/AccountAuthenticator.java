@@ -15,9 +15,9 @@
  ******************************************************************************/
 package fr.opensourceecm.android.alfresco.account;
 
+import org.alfresco.mobile.android.api.exceptions.AlfrescoException;
 import org.alfresco.mobile.android.api.session.authentication.OAuthData;
 import org.alfresco.mobile.android.api.session.authentication.impl.OAuth2DataImpl;
-import org.alfresco.mobile.android.api.session.authentication.impl.OAuthHelper;
 
 import android.accounts.AbstractAccountAuthenticator;
 import android.accounts.Account;
@@ -29,6 +29,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
+import fr.opensourceecm.android.alfresco.account.cloud.OAuthTokenRefresher;
 import fr.opensourceecm.android.alfresco.account.ui.AccountCreationActivity;
 
 public class AccountAuthenticator extends AbstractAccountAuthenticator
@@ -112,27 +113,24 @@ public class AccountAuthenticator extends AbstractAccountAuthenticator
             Bundle options) throws NetworkErrorException
     {
         final AccountManager am = AccountManager.get(context);
-        String authToken = am.peekAuthToken(account, authTokenType);
-        String refresh_token = null;
-        Log.d(TAG, "authToken cacke : " + authToken);
-        OAuth2DataImpl data = null;
+        OAuthTokenRefresher tokenRefresher = OAuthTokenRefresher.getInstance(context);
+        OAuthData data = null;
+        try
+        {
+            // Tokens about to expire are refreshed before being returned
+            data = tokenRefresher.getValidOAuthData(account);
+        }
+        catch (AlfrescoException e)
+        {
+            // Lets give another try with the stored tokens
+            Log.w(TAG, Log.getStackTraceString(e));
+            data = tokenRefresher.getOAuthData(account);
+        }
 
-        // Lets give another try to authenticate the user
-        if (TextUtils.isEmpty(authToken))
+        String authToken = data.getAccessToken();
+        if (!TextUtils.isEmpty(authToken) && TextUtils.isEmpty(am.peekAuthToken(account, authTokenType)))
         {
-            OAuthHelper helper = new OAuthHelper();
-            String token = am.getUserData(account, AccountConstants.OAUTH_ACCESS_TOKEN);
-            refresh_token = am.getUserData(account, AccountConstants.OAUTH_REFRESH_TOKEN);
-            Log.d(TAG, "OAuth Token : " + token + " - " + refresh_token);
-            authToken = token;
             am.setAuthToken(account, OAUTH_SCOPE, authToken);
-            data = new OAuth2DataImpl(OAUTH_API_KEY, OAUTH_API_SECRET, token, refresh_token);
-
-            /*data = helper.refreshToken(new OAuth2DataImpl(OAUTH_API_KEY, OAUTH_API_SECRET, token, refresh_token));
-            authToken = data.getAccessToken();
-            am.setAuthToken(account, AccountConstants.OAUTH_SCOPE, data.getAccessToken());
-            am.setUserData(account, AccountConstants.OAUTH_ACCESS_TOKEN, data.getAccessToken());
-            am.setUserData(account, AccountConstants.OAUTH_REFRESH_TOKEN, data.getRefreshToken());*/
         }
 
         // If we get an authToken - we return it
@@ -144,7 +142,7 @@ public class AccountAuthenticator extends AbstractAccountAuthenticator
             result.putString(AccountManager.KEY_ACCOUNT_TYPE, account.type);
             result.putString(PARAM_APIKEY, OAUTH_API_KEY);
             result.putString(PARAM_APISECRET, OAUTH_API_SECRET);
-            result.putString(PARAM_REFRESH_TOKEN,refresh_token);
+            result.putString(PARAM_REFRESH_TOKEN, data.getRefreshToken());
             result.putString(PARAM_TOKEN, authToken);
             return result;
         }
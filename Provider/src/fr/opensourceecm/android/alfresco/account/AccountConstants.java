@@ -46,6 +46,37 @@ public interface AccountConstants
 
     String ACCOUNT_URL = "fr.opensourceecm.android.alfresco.account.url";
 
+    /**
+     * Last change log token applied to the cached listings.
+     */
+    String ACCOUNT_CHANGE_LOG_TOKEN = "fr.opensourceecm.android.alfresco.account.changelog.token";
+
+    /**
+     * Time (in ms) the change log token has been stored.
+     */
+    String ACCOUNT_CHANGE_LOG_TIME = "fr.opensourceecm.android.alfresco.account.changelog.time";
+
+    /**
+     * Last time (in ms) the account root has been opened.
+     */
+    String ACCOUNT_LAST_USED = "fr.opensourceecm.android.alfresco.account.lastused";
+
+    /**
+     * Session bootstrap data : reused to connect without discovering the
+     * repository again.
+     */
+    String ACCOUNT_SESSION_CACHE_VERSION = "fr.opensourceecm.android.alfresco.account.session.version";
+
+    String ACCOUNT_SESSION_URL = "fr.opensourceecm.android.alfresco.account.session.url";
+
+    String ACCOUNT_SESSION_BINDING_URL = "fr.opensourceecm.android.alfresco.account.session.binding";
+
+    String ACCOUNT_SESSION_REPOSITORY_ID = "fr.opensourceecm.android.alfresco.account.session.repository";
+
+    String ACCOUNT_SESSION_REPOSITORY_VERSION = "fr.opensourceecm.android.alfresco.account.session.repository.version";
+
+    String ACCOUNT_SESSION_NETWORK_ID = "fr.opensourceecm.android.alfresco.account.session.network";
+
     /**
      * Alfresco Cloud KEYS
      */
@@ -55,4 +86,9 @@ public interface AccountConstants
 
     String OAUTH_REFRESH_TOKEN = "refresh_token";
 
+    /**
+     * Expiration time (in ms) of the access token.
+     */
+    String OAUTH_EXPIRATION = "fr.opensourceecm.android.alfresco.account.oauth.expiration";
+
 }
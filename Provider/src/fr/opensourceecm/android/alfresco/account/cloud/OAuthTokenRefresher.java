@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.account.cloud;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.mobile.android.api.exceptions.AlfrescoException;
+import org.alfresco.mobile.android.api.session.authentication.OAuthData;
+import org.alfresco.mobile.android.api.session.authentication.impl.OAuth2DataImpl;
+import org.alfresco.mobile.android.api.session.authentication.impl.OAuthHelper;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.R;
+import fr.opensourceecm.android.alfresco.account.AccountAuthenticator;
+import fr.opensourceecm.android.alfresco.account.AccountConstants;
+
+/**
+ * Keeps the OAuth tokens of cloud accounts valid.
+ * <p/>
+ * The expiration of the access token is stored with the account. Tokens are
+ * refreshed in background shortly before they expire : requests never pay for
+ * an unauthorized response followed by a new authentication. Concurrent
+ * refreshes of the same account are collapsed into one request. A failed
+ * background refresh is retried with an exponential backoff.
+ * <p/>
+ * Shared by the authenticator and the provider (same process).
+ *
+ * @author Jean Marie Pascal
+ */
+public final class OAuthTokenRefresher
+{
+    private static final String TAG = OAuthTokenRefresher.class.getSimpleName();
+
+    /** Delay (in ms) before the first retry of a failed refresh. */
+    private static final long MIN_RETRY_DELAY = 30000;
+
+    /** Maximum delay (in ms) between two retries of a failed refresh. */
+    private static final long MAX_RETRY_DELAY = 15 * 60000;
+
+    private static OAuthTokenRefresher instance;
+
+    private final AccountManager accountManager;
+
+    private final long tokenLifetime;
+
+    private final long refreshMargin;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, ScheduledFuture<?>> scheduledRefreshes = new HashMap<String, ScheduledFuture<?>>();
+
+    private final Map<String, Object> refreshLocks = new HashMap<String, Object>();
+
+    private final CopyOnWriteArrayList<OnTokenRefreshedListener> listeners =
+            new CopyOnWriteArrayList<OnTokenRefreshedListener>();
+
+    private OAuthTokenRefresher(Context context)
+    {
+        this.accountManager = AccountManager.get(context);
+        this.tokenLifetime = context.getResources().getInteger(R.integer.config_oauth_token_lifetime_seconds) * 1000L;
+        this.refreshMargin = context.getResources().getInteger(R.integer.config_oauth_refresh_margin_seconds) * 1000L;
+    }
+
+    public static synchronized OAuthTokenRefresher getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new OAuthTokenRefresher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // TOKENS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the tokens stored with the account.
+     */
+    public OAuthData getOAuthData(Account account)
+    {
+        OAuthData apiData = AccountAuthenticator.getOAuthAPIData();
+        return new OAuth2DataImpl(apiData.getApiKey(), apiData.getApiSecret(), accountManager.getUserData(account,
+                AccountConstants.OAUTH_ACCESS_TOKEN), accountManager.getUserData(account,
+                AccountConstants.OAUTH_REFRESH_TOKEN));
+    }
+
+    /**
+     * Store new tokens with the account and start their lifetime.
+     */
+    public void saveTokens(Account account, OAuthData oauthData)
+    {
+        accountManager.setUserData(account, AccountConstants.OAUTH_ACCESS_TOKEN, oauthData.getAccessToken());
+        accountManager.setUserData(account, AccountConstants.OAUTH_REFRESH_TOKEN, oauthData.getRefreshToken());
+        accountManager.setUserData(account, AccountConstants.OAUTH_EXPIRATION,
+                String.valueOf(System.currentTimeMillis() + tokenLifetime));
+        accountManager.setAuthToken(account, AccountConstants.OAUTH_SCOPE, oauthData.getAccessToken());
+    }
+
+    /**
+     * @return true if the access token expires within the refresh margin.
+     *         Tokens without known expiration are considered as expiring.
+     */
+    public boolean isExpiring(Account account)
+    {
+        return System.currentTimeMillis() >= getExpiration(account) - refreshMargin;
+    }
+
+    /**
+     * @return valid tokens : refreshed first if they are about to expire.
+     * @throws AlfrescoException if the refresh fails.
+     */
+    public OAuthData getValidOAuthData(Account account)
+    {
+        return isExpiring(account) ? refresh(account) : getOAuthData(account);
+    }
+
+    /**
+     * Refresh the tokens of the account if they are about to expire. A caller
+     * waiting for a concurrent refresh gets its result.
+     *
+     * @throws AlfrescoException if the refresh fails.
+     */
+    public OAuthData refresh(Account account)
+    {
+        OAuthData oauthData;
+        synchronized (getRefreshLock(account.name))
+        {
+            // Refreshed while waiting for the lock.
+            if (!isExpiring(account)) { return getOAuthData(account); }
+
+            saveTokens(account, new OAuthHelper().refreshToken(getOAuthData(account)));
+            oauthData = getOAuthData(account);
+            Log.d(TAG, "Token refreshed : " + account.name);
+        }
+
+        for (OnTokenRefreshedListener listener : listeners)
+        {
+            listener.onTokenRefreshed(account, oauthData);
+        }
+        return oauthData;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // SCHEDULING
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Refresh the tokens of the account in background before they expire.
+     * Replaces any refresh already scheduled for the account.
+     */
+    public synchronized void schedule(Account account)
+    {
+        long delay = Math.max(0, getExpiration(account) - refreshMargin - System.currentTimeMillis());
+        schedule(account, delay, MIN_RETRY_DELAY);
+    }
+
+    public synchronized void cancel(Account account)
+    {
+        ScheduledFuture<?> scheduledRefresh = scheduledRefreshes.remove(account.name);
+        if (scheduledRefresh != null)
+        {
+            scheduledRefresh.cancel(false);
+        }
+    }
+
+    public void addListener(OnTokenRefreshedListener listener)
+    {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(OnTokenRefreshedListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    private long getExpiration(Account account)
+    {
+        String expiration = accountManager.getUserData(account, AccountConstants.OAUTH_EXPIRATION);
+        return TextUtils.isEmpty(expiration) ? 0 : Long.parseLong(expiration);
+    }
+
+    /**
+     * @param retryDelay : Delay before the next attempt if this one fails.
+     */
+    private synchronized void schedule(Account account, long delay, long retryDelay)
+    {
+        cancel(account);
+        ScheduledRefresh scheduledRefresh = new ScheduledRefresh(account, retryDelay);
+        scheduledRefresh.future = scheduler.schedule(scheduledRefresh, delay, TimeUnit.MILLISECONDS);
+        scheduledRefreshes.put(account.name, scheduledRefresh.future);
+    }
+
+    /**
+     * Retry a failed refresh unless it has been replaced or cancelled
+     * meanwhile.
+     */
+    private synchronized void retry(ScheduledRefresh failedRefresh)
+    {
+        if (scheduledRefreshes.get(failedRefresh.account.name) != failedRefresh.future) { return; }
+        Log.d(TAG, "Refresh retried in " + failedRefresh.retryDelay + " ms : " + failedRefresh.account.name);
+        schedule(failedRefresh.account, failedRefresh.retryDelay,
+                Math.min(failedRefresh.retryDelay * 2, MAX_RETRY_DELAY));
+    }
+
+    private synchronized Object getRefreshLock(String accountName)
+    {
+        Object lock = refreshLocks.get(accountName);
+        if (lock == null)
+        {
+            lock = new Object();
+            refreshLocks.put(accountName, lock);
+        }
+        return lock;
+    }
+
+    private final class ScheduledRefresh implements Runnable
+    {
+        private final Account account;
+
+        private final long retryDelay;
+
+        private ScheduledFuture<?> future;
+
+        private ScheduledRefresh(Account account, long retryDelay)
+        {
+            this.account = account;
+            this.retryDelay = retryDelay;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                refresh(account);
+            }
+            catch (AlfrescoException e)
+            {
+                Log.w(TAG, Log.getStackTraceString(e));
+                retry(this);
+            }
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // LISTENER
+    // //////////////////////////////////////////////////////////////////////
+    public interface OnTokenRefreshedListener
+    {
+        /**
+         * Called on the refreshing thread once new tokens are stored.
+         */
+        void onTokenRefreshed(Account account, OAuthData oauthData);
+    }
+}
@@ -28,6 +28,7 @@ import android.os.Bundle;
 import android.view.View;
 import fr.opensourceecm.android.alfresco.R;
 import fr.opensourceecm.android.alfresco.account.AccountConstants;
+import fr.opensourceecm.android.alfresco.account.cloud.OAuthTokenRefresher;
 
 /**
  * Displays a wizard for the first account creation.
@@ -119,7 +120,7 @@ public class AccountCreationActivity extends AccountAuthenticatorActivity
         b.putString(AccountConstants.OAUTH_ACCESS_TOKEN, cloudSession.getOAuthData().getAccessToken());
         b.putString(AccountConstants.OAUTH_REFRESH_TOKEN, cloudSession.getOAuthData().getRefreshToken());
         mAccountManager.addAccountExplicitly(account, null, b);
-        mAccountManager.setAuthToken(account, AccountConstants.OAUTH_SCOPE , cloudSession.getOAuthData().getAccessToken());
+        OAuthTokenRefresher.getInstance(this).saveTokens(account, cloudSession.getOAuthData());
         
         final Intent intent = new Intent();
         intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, userPerson.getIdentifier());
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage;
+
+import android.text.TextUtils;
+
+/**
+ * Immutable state of an incomplete download : the partial file can be
+ * completed by a range request as long as the content hasn't changed.
+ *
+ * @author Jean Marie Pascal
+ */
+public final class DownloadState
+{
+    private final long expectedLength;
+
+    private final long bytesWritten;
+
+    private final String changeToken;
+
+    /**
+     * @param expectedLength : Length of the content, negative if unknown.
+     * @param bytesWritten : Length of the partial file once written to disk.
+     * @param changeToken : Change token of the node when the download
+     *            started.
+     */
+    public DownloadState(long expectedLength, long bytesWritten, String changeToken)
+    {
+        this.expectedLength = expectedLength;
+        this.bytesWritten = bytesWritten;
+        this.changeToken = changeToken;
+    }
+
+    public long getExpectedLength()
+    {
+        return expectedLength;
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    public String getChangeToken()
+    {
+        return changeToken;
+    }
+
+    /**
+     * @return true if the partial file belongs to the current content of the
+     *         node and can be completed.
+     */
+    public boolean canResume(String currentChangeToken, long currentLength)
+    {
+        return expectedLength > 0 && expectedLength == currentLength && bytesWritten > 0
+                && bytesWritten < expectedLength && TextUtils.equals(changeToken, currentChangeToken);
+    }
+}
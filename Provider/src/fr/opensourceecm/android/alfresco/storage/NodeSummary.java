@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage;
+
+import org.alfresco.mobile.android.api.model.Node;
+import org.alfresco.mobile.android.api.model.Permissions;
+import org.alfresco.mobile.android.api.model.impl.NodeImpl;
+import org.alfresco.mobile.android.api.model.impl.PermissionsImpl;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+
+import android.provider.DocumentsContract.Document;
+
+/**
+ * Immutable summary of a node : only the values required to build a Storage
+ * Access Framework row.
+ *
+ * @author Jean Marie Pascal
+ */
+public final class NodeSummary
+{
+    private final String identifier;
+
+    private final String name;
+
+    private final String mimeType;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final int flags;
+
+    private final String changeToken;
+
+    public NodeSummary(String identifier, String name, String mimeType, long size, long lastModified, int flags,
+            String changeToken)
+    {
+        this.identifier = identifier;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.flags = flags;
+        this.changeToken = changeToken;
+    }
+
+    public static NodeSummary create(Node node)
+    {
+        String mimeType = Document.MIME_TYPE_DIR;
+        long size = 0;
+        if (node.isDocument())
+        {
+            mimeType = ((org.alfresco.mobile.android.api.model.Document) node).getContentStreamMimeType();
+            size = ((org.alfresco.mobile.android.api.model.Document) node).getContentStreamLength();
+        }
+        long lastModified = (node.getModifiedAt() != null) ? node.getModifiedAt().getTimeInMillis() : 0;
+
+        // The change token is optional : fallback to the modification date.
+        Object changeToken = node.getPropertyValue(PropertyIds.CHANGE_TOKEN);
+        return new NodeSummary(node.getIdentifier(), node.getName(), mimeType, size, lastModified, computeFlags(node),
+                (changeToken != null) ? changeToken.toString() : Long.toString(lastModified));
+    }
+
+    /**
+     * No network request here : permissions are computed from the allowable
+     * actions retrieved with the node.
+     */
+    public static int computeFlags(Node node)
+    {
+        int flags = 0;
+
+        Permissions permission = null;
+        if (node instanceof NodeImpl)
+        {
+            permission = new PermissionsImpl(node);
+        }
+
+        if (node.isFolder())
+        {
+            if (permission != null && permission.canAddChildren())
+            {
+                flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
+            }
+        }
+        else
+        {
+            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+            if (permission != null && permission.canEdit())
+            {
+                flags |= Document.FLAG_SUPPORTS_WRITE;
+            }
+
+            if (permission != null && permission.canDelete())
+            {
+                flags |= Document.FLAG_SUPPORTS_DELETE;
+            }
+        }
+        return flags;
+    }
+
+    public String getIdentifier()
+    {
+        return identifier;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getMimeType()
+    {
+        return mimeType;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    public int getFlags()
+    {
+        return flags;
+    }
+
+    public String getChangeToken()
+    {
+        return changeToken;
+    }
+
+    public boolean isFolder()
+    {
+        return Document.MIME_TYPE_DIR.equals(mimeType);
+    }
+}
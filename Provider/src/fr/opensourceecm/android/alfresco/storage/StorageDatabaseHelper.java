@@ -0,0 +1,750 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Persistent metadata cache of the provider.
+ * <p/>
+ * It keeps the last known listings so that a folder can be displayed
+ * immediately after the process has been killed. It also keeps an history of
+ * the folders opened by the user, the document library of each site, the
+ * index of the content files and the state of incomplete downloads. It's only
+ * a cache : the database is dropped on upgrade.
+ *
+ * @author Jean Marie Pascal
+ */
+public class StorageDatabaseHelper extends SQLiteOpenHelper
+{
+    private static final String DATABASE_NAME = "storage.db";
+
+    private static final int DATABASE_VERSION = 7;
+
+    /**
+     * Separates the parent document id from the sort order in a listing key.
+     * Listings are stored by their key.
+     */
+    public static final String LISTING_KEY_SEPARATOR = "#";
+
+    // //////////////////////////////////////////////////////////////////////
+    // NODES
+    // //////////////////////////////////////////////////////////////////////
+    private static final String TABLE_NODES = "nodes";
+
+    private static final String COLUMN_ACCOUNT_NAME = "account_name";
+
+    private static final String COLUMN_PARENT_ID = "parent_id";
+
+    private static final String COLUMN_NODE_ID = "node_id";
+
+    private static final String COLUMN_POSITION = "position";
+
+    private static final String COLUMN_NAME = "name";
+
+    private static final String COLUMN_MIME_TYPE = "mime_type";
+
+    private static final String COLUMN_SIZE = "size";
+
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+    private static final String COLUMN_FLAGS = "flags";
+
+    private static final String COLUMN_CHANGE_TOKEN = "change_token";
+
+    private static final String[] NODE_COLUMNS = new String[] { COLUMN_NODE_ID, COLUMN_NAME, COLUMN_MIME_TYPE,
+            COLUMN_SIZE, COLUMN_LAST_MODIFIED, COLUMN_FLAGS, COLUMN_CHANGE_TOKEN };
+
+    private static final String CREATE_TABLE_NODES = "CREATE TABLE " + TABLE_NODES + " (" + COLUMN_ACCOUNT_NAME
+            + " TEXT NOT NULL, " + COLUMN_PARENT_ID + " TEXT NOT NULL, " + COLUMN_NODE_ID + " TEXT NOT NULL, "
+            + COLUMN_POSITION + " INTEGER, " + COLUMN_NAME + " TEXT, " + COLUMN_MIME_TYPE + " TEXT, " + COLUMN_SIZE
+            + " INTEGER, " + COLUMN_LAST_MODIFIED + " INTEGER, " + COLUMN_FLAGS + " INTEGER, " + COLUMN_CHANGE_TOKEN
+            + " TEXT, PRIMARY KEY (" + COLUMN_PARENT_ID + ", " + COLUMN_NODE_ID + "));";
+
+    private static final String CREATE_INDEX_NODES = "CREATE INDEX " + TABLE_NODES + "_" + COLUMN_NODE_ID + " ON "
+            + TABLE_NODES + " (" + COLUMN_ACCOUNT_NAME + ", " + COLUMN_NODE_ID + ");";
+
+    /** Match a node of the account whatever its version label. */
+    private static final String NODE_ID_SELECTION = COLUMN_ACCOUNT_NAME + " = ? AND (" + COLUMN_NODE_ID
+            + " = ? OR " + COLUMN_NODE_ID + " LIKE ?)";
+
+    private static final String INSERT_NODE = "INSERT OR REPLACE INTO " + TABLE_NODES + " (" + COLUMN_ACCOUNT_NAME
+            + ", " + COLUMN_PARENT_ID + ", " + COLUMN_NODE_ID + ", " + COLUMN_POSITION + ", " + COLUMN_NAME + ", "
+            + COLUMN_MIME_TYPE + ", " + COLUMN_SIZE + ", " + COLUMN_LAST_MODIFIED + ", " + COLUMN_FLAGS + ", "
+            + COLUMN_CHANGE_TOKEN + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+    // //////////////////////////////////////////////////////////////////////
+    // ACCESS HISTORY
+    // //////////////////////////////////////////////////////////////////////
+    private static final String TABLE_ACCESS = "folder_access";
+
+    private static final String COLUMN_ACCESS_COUNT = "access_count";
+
+    private static final String COLUMN_LAST_ACCESS = "last_access";
+
+    /** Maximum number of folders kept in the access history. */
+    private static final int MAX_ACCESS_HISTORY = 500;
+
+    private static final String CREATE_TABLE_ACCESS = "CREATE TABLE " + TABLE_ACCESS + " (" + COLUMN_ACCOUNT_NAME
+            + " TEXT NOT NULL, " + COLUMN_NODE_ID + " TEXT NOT NULL, " + COLUMN_ACCESS_COUNT
+            + " INTEGER NOT NULL DEFAULT 0, " + COLUMN_LAST_ACCESS + " INTEGER, PRIMARY KEY (" + COLUMN_ACCOUNT_NAME
+            + ", " + COLUMN_NODE_ID + "));";
+
+    private static final String TRIM_ACCESS = "DELETE FROM " + TABLE_ACCESS
+            + " WHERE rowid NOT IN (SELECT rowid FROM " + TABLE_ACCESS + " ORDER BY " + COLUMN_LAST_ACCESS + " DESC LIMIT " + MAX_ACCESS_HISTORY + ");";
+
+    private static final String ACCESS_SELECTION = COLUMN_ACCOUNT_NAME + " = ? AND " + COLUMN_NODE_ID + " = ?";
+
+    // //////////////////////////////////////////////////////////////////////
+    // DOCUMENT LIBRARIES
+    // //////////////////////////////////////////////////////////////////////
+    private static final String TABLE_LIBRARIES = "document_libraries";
+
+    private static final String COLUMN_SITE_ID = "site_id";
+
+    private static final String CREATE_TABLE_LIBRARIES = "CREATE TABLE " + TABLE_LIBRARIES + " ("
+            + COLUMN_ACCOUNT_NAME + " TEXT NOT NULL, " + COLUMN_SITE_ID + " TEXT NOT NULL, " + COLUMN_NODE_ID
+            + " TEXT NOT NULL, PRIMARY KEY (" + COLUMN_ACCOUNT_NAME + ", " + COLUMN_SITE_ID + "));";
+
+    // //////////////////////////////////////////////////////////////////////
+    // DOWNLOADS
+    // //////////////////////////////////////////////////////////////////////
+    private static final String TABLE_DOWNLOADS = "downloads";
+
+    private static final String COLUMN_PATH = "path";
+
+    private static final String COLUMN_EXPECTED_LENGTH = "expected_length";
+
+    private static final String COLUMN_BYTES_WRITTEN = "bytes_written";
+
+    private static final String CREATE_TABLE_DOWNLOADS = "CREATE TABLE " + TABLE_DOWNLOADS + " (" + COLUMN_PATH
+            + " TEXT PRIMARY KEY, " + COLUMN_EXPECTED_LENGTH + " INTEGER, " + COLUMN_BYTES_WRITTEN + " INTEGER, "
+            + COLUMN_CHANGE_TOKEN + " TEXT);";
+
+    // //////////////////////////////////////////////////////////////////////
+    // CONTENTS
+    // //////////////////////////////////////////////////////////////////////
+    private static final String TABLE_CONTENTS = "contents";
+
+    private static final String COLUMN_CONTENT_TYPE = "content_type";
+
+    private static final String CREATE_TABLE_CONTENTS = "CREATE TABLE " + TABLE_CONTENTS + " (" + COLUMN_PATH
+            + " TEXT PRIMARY KEY, " + COLUMN_ACCOUNT_NAME + " TEXT NOT NULL, " + COLUMN_CONTENT_TYPE
+            + " TEXT NOT NULL, " + COLUMN_NODE_ID + " TEXT NOT NULL, " + COLUMN_CHANGE_TOKEN + " TEXT, "
+            + COLUMN_NAME + " TEXT, " + COLUMN_SIZE + " INTEGER NOT NULL DEFAULT 0, " + COLUMN_LAST_ACCESS
+            + " INTEGER NOT NULL DEFAULT 0, " + COLUMN_ACCESS_COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+    /** Recency (in ms) gained by each access to a content. */
+    private static final long ACCESS_BONUS = 3600000;
+
+    /** Maximum number of accesses counted. */
+    private static final int MAX_ACCESS_BONUS = 24;
+
+    /**
+     * Least recently used first. Each access counts as more recency :
+     * frequently used contents stay longer.
+     */
+    private static final String EVICTION_ORDER = COLUMN_LAST_ACCESS + " + MIN(" + COLUMN_ACCESS_COUNT + ", "
+            + MAX_ACCESS_BONUS + ") * " + ACCESS_BONUS + " ASC";
+
+    private static final String CREATE_INDEX_CONTENTS = "CREATE INDEX " + TABLE_CONTENTS + "_" + COLUMN_NODE_ID
+            + " ON " + TABLE_CONTENTS + " (" + COLUMN_NODE_ID + ");";
+
+    // //////////////////////////////////////////////////////////////////////
+    // CONSTRUCTORS
+    // //////////////////////////////////////////////////////////////////////
+    public StorageDatabaseHelper(Context context)
+    {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db)
+    {
+        db.execSQL(CREATE_TABLE_NODES);
+        db.execSQL(CREATE_INDEX_NODES);
+        db.execSQL(CREATE_TABLE_ACCESS);
+        db.execSQL(CREATE_TABLE_LIBRARIES);
+        db.execSQL(CREATE_TABLE_DOWNLOADS);
+        db.execSQL(CREATE_TABLE_CONTENTS);
+        db.execSQL(CREATE_INDEX_CONTENTS);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+    {
+        // It's a cache : nothing to migrate.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NODES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ACCESS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LIBRARIES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOWNLOADS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CONTENTS);
+        onCreate(db);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // NODES
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the parent document id of the listing key.
+     */
+    public static String getListingParentId(String listingKey)
+    {
+        int index = listingKey.indexOf(LISTING_KEY_SEPARATOR);
+        return (index == -1) ? listingKey : listingKey.substring(0, index);
+    }
+
+    /**
+     * @return the last known listing of the parent in its original order.
+     */
+    public List<NodeSummary> getChildren(String parentId)
+    {
+        List<NodeSummary> children = new ArrayList<NodeSummary>();
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(TABLE_NODES, NODE_COLUMNS, COLUMN_PARENT_ID + " = ?",
+                    new String[] { parentId }, null, null, COLUMN_POSITION);
+            while (cursor.moveToNext())
+            {
+                children.add(createNodeSummary(cursor));
+            }
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        return children;
+    }
+
+    public boolean hasChildren(String parentId)
+    {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_NODES, COLUMN_PARENT_ID + " = ?",
+                new String[] { parentId }) > 0;
+    }
+
+    /**
+     * @param nodeId : Node identifier with or without version label.
+     */
+    public NodeSummary getNode(String accountName, String nodeId)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(TABLE_NODES, NODE_COLUMNS, NODE_ID_SELECTION,
+                    getNodeIdArgs(accountName, nodeId), null, null, null, "1");
+            return cursor.moveToFirst() ? createNodeSummary(cursor) : null;
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Replace the stored listing of the parent.
+     */
+    public void replaceChildren(String accountName, String parentId, List<NodeSummary> children)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try
+        {
+            db.delete(TABLE_NODES, COLUMN_PARENT_ID + " = ?", new String[] { parentId });
+            SQLiteStatement statement = db.compileStatement(INSERT_NODE);
+            int position = 0;
+            for (NodeSummary child : children)
+            {
+                statement.clearBindings();
+                bindNode(statement, accountName, parentId, position++, child);
+                statement.executeInsert();
+            }
+            statement.close();
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param nodeId : Node identifier without version label.
+     * @return the keys of the listings of the account which contain the
+     *         node.
+     */
+    public List<String> getParentIds(String accountName, String nodeId)
+    {
+        List<String> parentIds = new ArrayList<String>();
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(true, TABLE_NODES, new String[] { COLUMN_PARENT_ID },
+                    NODE_ID_SELECTION, getNodeIdArgs(accountName, nodeId), null, null, null, null);
+            while (cursor.moveToNext())
+            {
+                parentIds.add(cursor.getString(0));
+            }
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        return parentIds;
+    }
+
+    /**
+     * @return the keys of the stored listings of the account.
+     */
+    public List<String> getListingKeys(String accountName)
+    {
+        List<String> keys = new ArrayList<String>();
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(true, TABLE_NODES, new String[] { COLUMN_PARENT_ID },
+                    COLUMN_ACCOUNT_NAME + " = ?", new String[] { accountName }, null, null, null, null);
+            while (cursor.moveToNext())
+            {
+                keys.add(cursor.getString(0));
+            }
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Update the node in all stored listings.
+     */
+    public void updateNode(String accountName, String nodeId, NodeSummary node)
+    {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NODE_ID, node.getIdentifier());
+        values.put(COLUMN_NAME, node.getName());
+        values.put(COLUMN_MIME_TYPE, node.getMimeType());
+        values.put(COLUMN_SIZE, node.getSize());
+        values.put(COLUMN_LAST_MODIFIED, node.getLastModified());
+        values.put(COLUMN_FLAGS, node.getFlags());
+        values.put(COLUMN_CHANGE_TOKEN, node.getChangeToken());
+        getWritableDatabase().update(TABLE_NODES, values, NODE_ID_SELECTION, getNodeIdArgs(accountName, nodeId));
+    }
+
+    /**
+     * Add the node at the end of the stored listing. The position of the node
+     * is unknown inside sorted listings : they are removed.
+     */
+    public void appendChild(String accountName, String parentId, NodeSummary node)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try
+        {
+            db.delete(TABLE_NODES, COLUMN_PARENT_ID + " LIKE ?", new String[] { parentId
+                    + LISTING_KEY_SEPARATOR + "%" });
+            long position = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_POSITION
+                    + "), -1) + 1 FROM " + TABLE_NODES + " WHERE " + COLUMN_PARENT_ID + " = ?",
+                    new String[] { parentId });
+            SQLiteStatement statement = db.compileStatement(INSERT_NODE);
+            bindNode(statement, accountName, parentId, position, node);
+            statement.executeInsert();
+            statement.close();
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param nodeId : Node identifier with or without version label.
+     */
+    public void deleteNode(String accountName, String nodeId)
+    {
+        getWritableDatabase().delete(TABLE_NODES, NODE_ID_SELECTION, getNodeIdArgs(accountName, nodeId));
+    }
+
+    /**
+     * Remove the stored listings of the parent whatever their sort order.
+     */
+    public void deleteChildren(String parentId)
+    {
+        getWritableDatabase().delete(TABLE_NODES,
+                "(" + COLUMN_PARENT_ID + " = ? OR " + COLUMN_PARENT_ID + " LIKE ?)",
+                new String[] { parentId, parentId + LISTING_KEY_SEPARATOR + "%" });
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // ACCESS HISTORY
+    // //////////////////////////////////////////////////////////////////////
+    public void recordAccess(String accountName, String folderId)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try
+        {
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_ACCESS + " (" + COLUMN_ACCOUNT_NAME + ", " + COLUMN_NODE_ID
+                    + ") VALUES (?, ?);", new Object[] { accountName, folderId });
+            db.execSQL("UPDATE " + TABLE_ACCESS + " SET " + COLUMN_ACCESS_COUNT + " = " + COLUMN_ACCESS_COUNT
+                    + " + 1, " + COLUMN_LAST_ACCESS + " = ? WHERE " + ACCESS_SELECTION + ";", new Object[] {
+                    System.currentTimeMillis(), accountName, folderId });
+            db.execSQL(TRIM_ACCESS);
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the number of times the folder has been opened.
+     */
+    public int getAccessCount(String accountName, String folderId)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(TABLE_ACCESS, new String[] { COLUMN_ACCESS_COUNT },
+                    ACCESS_SELECTION, new String[] { accountName, folderId }, null, null, null);
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // DOCUMENT LIBRARIES
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the identifier of the site document library folder or null if
+     *         unknown.
+     */
+    public String getDocumentLibraryId(String accountName, String siteId)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(TABLE_LIBRARIES, new String[] { COLUMN_NODE_ID },
+                    COLUMN_ACCOUNT_NAME + " = ? AND " + COLUMN_SITE_ID + " = ?", new String[] { accountName, siteId },
+                    null, null, null);
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    public void putDocumentLibraryId(String accountName, String siteId, String folderId)
+    {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ACCOUNT_NAME, accountName);
+        values.put(COLUMN_SITE_ID, siteId);
+        values.put(COLUMN_NODE_ID, folderId);
+        getWritableDatabase().insertWithOnConflict(TABLE_LIBRARIES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // DOWNLOADS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @param path : Path of the downloaded file.
+     * @return the state of the incomplete download or null if none.
+     */
+    public DownloadState getDownloadState(String path)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(TABLE_DOWNLOADS, new String[] { COLUMN_EXPECTED_LENGTH,
+                    COLUMN_BYTES_WRITTEN, COLUMN_CHANGE_TOKEN }, COLUMN_PATH + " = ?", new String[] { path }, null,
+                    null, null);
+            return cursor.moveToFirst() ? new DownloadState(cursor.getLong(0), cursor.getLong(1),
+                    cursor.getString(2)) : null;
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    public void putDownloadState(String path, DownloadState state)
+    {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_EXPECTED_LENGTH, state.getExpectedLength());
+        values.put(COLUMN_BYTES_WRITTEN, state.getBytesWritten());
+        values.put(COLUMN_CHANGE_TOKEN, state.getChangeToken());
+        getWritableDatabase().insertWithOnConflict(TABLE_DOWNLOADS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void deleteDownloadState(String path)
+    {
+        getWritableDatabase().delete(TABLE_DOWNLOADS, COLUMN_PATH + " = ?", new String[] { path });
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // CONTENTS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Index a content file with the node it belongs to. An entry already
+     * indexed keeps its access statistics.
+     *
+     * @param path : Path of the content file.
+     * @param contentType : Type of content (document, thumbnail...).
+     * @param nodeId : Node identifier without version label.
+     * @param name : Display name of the node.
+     * @return the paths of the files of the other versions, to be deleted
+     *         with {@link #removeContent(String)}.
+     */
+    public List<String> putContent(String path, String accountName, String contentType, String nodeId,
+            String changeToken, String name)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try
+        {
+            List<String> stalePaths = getContentPaths(db, COLUMN_ACCOUNT_NAME + " = ? AND " + COLUMN_CONTENT_TYPE
+                    + " = ? AND " + COLUMN_NODE_ID + " = ? AND " + COLUMN_PATH + " != ?", new String[] {
+                    accountName, contentType, nodeId, path });
+
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_PATH, path);
+            values.put(COLUMN_ACCOUNT_NAME, accountName);
+            values.put(COLUMN_CONTENT_TYPE, contentType);
+            values.put(COLUMN_NODE_ID, nodeId);
+            values.put(COLUMN_CHANGE_TOKEN, changeToken);
+            values.put(COLUMN_NAME, name);
+            db.insertWithOnConflict(TABLE_CONTENTS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            db.setTransactionSuccessful();
+            return stalePaths;
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param nodeId : Node identifier without version label.
+     * @return the paths of all content files of the node, to be deleted with
+     *         {@link #removeContent(String)}.
+     */
+    public List<String> getContentPaths(String accountName, String nodeId)
+    {
+        return getContentPaths(getReadableDatabase(), COLUMN_ACCOUNT_NAME + " = ? AND " + COLUMN_NODE_ID + " = ?",
+                new String[] { accountName, nodeId });
+    }
+
+    public void removeContent(String path)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try
+        {
+            db.delete(TABLE_CONTENTS, COLUMN_PATH + " = ?", new String[] { path });
+            db.delete(TABLE_DOWNLOADS, COLUMN_PATH + " = ?", new String[] { path });
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Record an access to a content file.
+     *
+     * @param size : Current size of the file.
+     */
+    public void recordContentAccess(String path, long size)
+    {
+        getWritableDatabase().execSQL("UPDATE " + TABLE_CONTENTS + " SET " + COLUMN_SIZE + " = ?, "
+                + COLUMN_LAST_ACCESS + " = ?, " + COLUMN_ACCESS_COUNT + " = " + COLUMN_ACCESS_COUNT + " + 1 WHERE "
+                + COLUMN_PATH + " = ?;", new Object[] { size, System.currentTimeMillis(), path });
+    }
+
+    /**
+     * @return the account name & content type of each indexed cache.
+     */
+    public List<String[]> getContentCaches()
+    {
+        List<String[]> caches = new ArrayList<String[]>();
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(true, TABLE_CONTENTS, new String[] { COLUMN_ACCOUNT_NAME,
+                    COLUMN_CONTENT_TYPE }, null, null, null, null, null, null);
+            while (cursor.moveToNext())
+            {
+                caches.add(new String[] { cursor.getString(0), cursor.getString(1) });
+            }
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        return caches;
+    }
+
+    /**
+     * @return the size of the content files of the cache.
+     */
+    public long getContentsSize(String accountName, String contentType)
+    {
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "SELECT IFNULL(SUM(" + COLUMN_SIZE + "), 0) FROM "
+                + TABLE_CONTENTS + " WHERE " + COLUMN_ACCOUNT_NAME + " = ? AND " + COLUMN_CONTENT_TYPE + " = ?",
+                new String[] { accountName, contentType });
+    }
+
+    /**
+     * @return the size by path of the content files of the cache, first to
+     *         evict first.
+     */
+    public Map<String, Long> getContentsToEvict(String accountName, String contentType)
+    {
+        Map<String, Long> contents = new LinkedHashMap<String, Long>();
+        Cursor cursor = null;
+        try
+        {
+            cursor = getReadableDatabase().query(TABLE_CONTENTS, new String[] { COLUMN_PATH, COLUMN_SIZE },
+                    COLUMN_ACCOUNT_NAME + " = ? AND " + COLUMN_CONTENT_TYPE + " = ?", new String[] { accountName,
+                            contentType }, null, null, EVICTION_ORDER);
+            while (cursor.moveToNext())
+            {
+                contents.put(cursor.getString(0), cursor.getLong(1));
+            }
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * @return the paths of the selected content entries.
+     */
+    private static List<String> getContentPaths(SQLiteDatabase db, String selection, String[] selectionArgs)
+    {
+        List<String> paths = new ArrayList<String>();
+        Cursor cursor = null;
+        try
+        {
+            cursor = db.query(TABLE_CONTENTS, new String[] { COLUMN_PATH }, selection, selectionArgs, null, null,
+                    null);
+            while (cursor.moveToNext())
+            {
+                paths.add(cursor.getString(0));
+            }
+        }
+        finally
+        {
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        return paths;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // UTILS
+    // //////////////////////////////////////////////////////////////////////
+    private static String[] getNodeIdArgs(String accountName, String nodeId)
+    {
+        int index = nodeId.indexOf(';');
+        String cleanId = (index == -1) ? nodeId : nodeId.substring(0, index);
+        return new String[] { accountName, cleanId, cleanId + ";%" };
+    }
+
+    private static NodeSummary createNodeSummary(Cursor cursor)
+    {
+        return new NodeSummary(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getLong(3),
+                cursor.getLong(4), cursor.getInt(5), cursor.getString(6));
+    }
+
+    private static void bindNode(SQLiteStatement statement, String accountName, String parentId, long position,
+            NodeSummary node)
+    {
+        statement.bindString(1, accountName);
+        statement.bindString(2, parentId);
+        statement.bindString(3, node.getIdentifier());
+        statement.bindLong(4, position);
+        bindString(statement, 5, node.getName());
+        bindString(statement, 6, node.getMimeType());
+        statement.bindLong(7, node.getSize());
+        statement.bindLong(8, node.getLastModified());
+        statement.bindLong(9, node.getFlags());
+        bindString(statement, 10, node.getChangeToken());
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value)
+    {
+        if (value == null)
+        {
+            statement.bindNull(index);
+        }
+        else
+        {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -15,15 +15,20 @@
  ******************************************************************************/
 package fr.opensourceecm.android.alfresco.storage;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.alfresco.mobile.android.api.utils.IOUtils;
 
@@ -40,8 +45,28 @@ public final class StorageUtils
 {
     private static String TAG = StorageUtils.class.getSimpleName();
 
-    private static final int MAX_BUFFER_SIZE = 1024;
-    
+    /** Extension of a file while it's downloaded. */
+    public static final String PARTIAL_FILE_EXTENSION = ".part";
+
+    /** Size of the copy buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Maximum number of bytes transferred at once between two files. */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    /** Number of bytes copied between two cancellation checks. */
+    private static final long CANCELLATION_CHECK_SIZE = 256 * 1024;
+
+    /** Copy buffer of each download thread : allocated once. */
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue()
+        {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
     /**
      * Retrieve the file object where to store the Document or the thumbnail.
      * Each account has its own dedicated storage space inside the sdcard.
@@ -61,40 +86,84 @@ public final class StorageUtils
     }
 
     /**
-     * Copy an inputStream to the dedicated file object.
+     * @return the name of the cache file of a node content : one file per
+     *         node version, whatever the name of the node.
+     */
+    public static String getContentFileName(String identifier, String changeToken)
+    {
+        return hash(identifier + "@" + changeToken);
+    }
+
+    /**
+     * Delete a content file and its partial file if any.
+     */
+    public static void deleteContentFile(String path)
+    {
+        new File(path).delete();
+        new File(path + PARTIAL_FILE_EXTENSION).delete();
+    }
+
+    /**
+     * @return the SHA-1 of the value in hexadecimal, usable as file name.
+     */
+    public static String hash(String value)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copy an inputStream to the dedicated file object. At most size bytes
+     * are copied (all the stream if size is negative).
      */
     public static boolean copyFile(InputStream src, long size, File dest, CancellationSignal signal)
+    {
+        return copyFile(src, size, dest, false, signal);
+    }
+
+    /**
+     * Copy an inputStream at the end of the file object : used to complete a
+     * partial file.
+     */
+    public static boolean appendFile(InputStream src, long size, File dest, CancellationSignal signal)
+    {
+        return copyFile(src, size, dest, true, signal);
+    }
+
+    private static boolean copyFile(InputStream src, long size, File dest, boolean append, CancellationSignal signal)
     {
         IOUtils.ensureOrCreatePathAndFile(dest);
-        OutputStream os = null;
+        FileOutputStream os = null;
         boolean copied = true;
-        int downloaded = 0;
+        long limit = (size >= 0) ? size : Long.MAX_VALUE;
+        long start = append ? dest.length() : 0;
 
         try
         {
-            os = new BufferedOutputStream(new FileOutputStream(dest));
-
-            byte[] buffer = new byte[MAX_BUFFER_SIZE];
-
-            while (size - downloaded > 0)
+            os = new FileOutputStream(dest, append);
+            if (src instanceof FileInputStream)
             {
-                if (size - downloaded < MAX_BUFFER_SIZE)
-                {
-                    buffer = new byte[(int) (size - downloaded)];
-                }
-
-                int read = src.read(buffer);
-                if (read == -1)
-                {
-                    break;
-                }
-
-                os.write(buffer, 0, read);
-                downloaded += read;
-                if (signal != null && signal.isCanceled())
-                {
-                    signal.throwIfCanceled();
-                }
+                transfer(((FileInputStream) src).getChannel(), os.getChannel(), start, limit, signal);
+            }
+            else
+            {
+                copy(src, os.getChannel(), limit, signal);
             }
         }
         catch (FileNotFoundException e)
@@ -115,6 +184,120 @@ public final class StorageUtils
         return copied;
     }
 
+    /**
+     * Truncate the file to the length : bytes after it are discarded.
+     */
+    public static void truncateFile(File file, long length) throws IOException
+    {
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() > length)
+            {
+                raf.setLength(length);
+            }
+        }
+        finally
+        {
+            IOUtils.closeStream(raf);
+        }
+    }
+
+    /**
+     * File to file : the system copies the data without going through a
+     * buffer of the application.
+     */
+    private static long transfer(FileChannel source, FileChannel destination, long start, long limit,
+            CancellationSignal signal) throws IOException
+    {
+        long position = 0;
+        long checkPosition = CANCELLATION_CHECK_SIZE;
+        while (position < limit)
+        {
+            long transferred = destination.transferFrom(source, start + position,
+                    Math.min(TRANSFER_SIZE, limit - position));
+            if (transferred <= 0)
+            {
+                break;
+            }
+
+            position += transferred;
+            if (position >= checkPosition)
+            {
+                checkPosition = position + CANCELLATION_CHECK_SIZE;
+                checkCanceled(signal);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Copy a file to the output stream. The output is not closed.
+     */
+    public static void copyFile(File src, OutputStream output) throws IOException
+    {
+        InputStream is = null;
+        try
+        {
+            is = new FileInputStream(src);
+            byte[] bytes = BUFFERS.get().array();
+            int read;
+            while ((read = is.read(bytes)) != -1)
+            {
+                output.write(bytes, 0, read);
+            }
+            output.flush();
+        }
+        finally
+        {
+            IOUtils.closeStream(is);
+        }
+    }
+
+    /**
+     * Stream to file through the buffer of the current thread.
+     */
+    private static long copy(InputStream source, FileChannel destination, long limit, CancellationSignal signal)
+            throws IOException
+    {
+        ByteBuffer buffer = BUFFERS.get();
+        byte[] bytes = buffer.array();
+        long position = 0;
+        long checkPosition = CANCELLATION_CHECK_SIZE;
+        while (position < limit)
+        {
+            int read = source.read(bytes, 0, (int) Math.min(bytes.length, limit - position));
+            if (read == -1)
+            {
+                break;
+            }
+
+            buffer.clear();
+            buffer.limit(read);
+            while (buffer.hasRemaining())
+            {
+                destination.write(buffer);
+            }
+
+            position += read;
+            if (position >= checkPosition)
+            {
+                checkPosition = position + CANCELLATION_CHECK_SIZE;
+                checkCanceled(signal);
+            }
+        }
+        return position;
+    }
+
+    private static void checkCanceled(CancellationSignal signal)
+    {
+        if (signal != null)
+        {
+            signal.throwIfCanceled();
+        }
+    }
+
     /**
      * Retrieve the file Path associated to a specific account based on server url & username.
      */
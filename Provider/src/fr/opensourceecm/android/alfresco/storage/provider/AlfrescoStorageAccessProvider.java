@@ -16,39 +16,68 @@
 package fr.opensourceecm.android.alfresco.storage.provider;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.alfresco.mobile.android.api.exceptions.AlfrescoException;
+import org.alfresco.mobile.android.api.exceptions.AlfrescoServiceException;
+import org.alfresco.mobile.android.api.exceptions.AlfrescoSessionException;
+import org.alfresco.mobile.android.api.exceptions.ErrorCodeRegistry;
 import org.alfresco.mobile.android.api.model.ContentStream;
 import org.alfresco.mobile.android.api.model.Folder;
 import org.alfresco.mobile.android.api.model.KeywordSearchOptions;
+import org.alfresco.mobile.android.api.model.ListingContext;
 import org.alfresco.mobile.android.api.model.Node;
-import org.alfresco.mobile.android.api.model.Permissions;
+import org.alfresco.mobile.android.api.model.PagingResult;
 import org.alfresco.mobile.android.api.model.SearchLanguage;
 import org.alfresco.mobile.android.api.model.Site;
+import org.alfresco.mobile.android.api.model.impl.DocumentImpl;
+import org.alfresco.mobile.android.api.model.impl.FolderImpl;
+import org.alfresco.mobile.android.api.model.impl.PagingResultImpl;
 import org.alfresco.mobile.android.api.services.DocumentFolderService;
+import org.alfresco.mobile.android.api.services.SiteService;
 import org.alfresco.mobile.android.api.session.AlfrescoSession;
 import org.alfresco.mobile.android.api.session.CloudSession;
 import org.alfresco.mobile.android.api.session.RepositorySession;
 import org.alfresco.mobile.android.api.session.authentication.OAuthData;
 import org.alfresco.mobile.android.api.session.authentication.impl.OAuth2DataImpl;
+import org.alfresco.mobile.android.api.session.impl.AbstractAlfrescoSessionImpl;
 import org.alfresco.mobile.android.api.utils.DateUtils;
 import org.alfresco.mobile.android.api.utils.NodeRefUtils;
+import org.apache.chemistry.opencmis.client.api.CmisObject;
+import org.apache.chemistry.opencmis.client.api.OperationContext;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderData;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderList;
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerCallback;
 import android.accounts.AccountManagerFuture;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
@@ -64,11 +93,16 @@ import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
-import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import fr.opensourceecm.android.alfresco.R;
 import fr.opensourceecm.android.alfresco.account.AccountAuthenticator;
 import fr.opensourceecm.android.alfresco.account.AccountConstants;
+import fr.opensourceecm.android.alfresco.account.cloud.OAuthTokenRefresher;
+import fr.opensourceecm.android.alfresco.account.cloud.OAuthTokenRefresher.OnTokenRefreshedListener;
+import fr.opensourceecm.android.alfresco.storage.DownloadState;
+import fr.opensourceecm.android.alfresco.storage.NodeSummary;
+import fr.opensourceecm.android.alfresco.storage.StorageDatabaseHelper;
 import fr.opensourceecm.android.alfresco.storage.StorageUtils;
 
 public class AlfrescoStorageAccessProvider extends DocumentsProvider implements AccountManagerCallback<Bundle>
@@ -78,10 +112,6 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     // //////////////////////////////////////////////////////////////////////
     private static final String TAG = AlfrescoStorageAccessProvider.class.getSimpleName();
 
-    private static final int PREFIX_ACCOUNT = 1;
-
-    private static final int PREFIX_SITE = 2;
-
     private static final String SEPARATOR = "::";
 
     /** CMIS Query to retrieve recent documents. */
@@ -95,57 +125,93 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
             Document.COLUMN_MIME_TYPE, Document.COLUMN_DISPLAY_NAME, Document.COLUMN_LAST_MODIFIED,
             Document.COLUMN_FLAGS, Document.COLUMN_SIZE };
 
-    @SuppressWarnings("serial")
-    private static final List<String> IMPORT_FOLDER_LIST = new ArrayList<String>(4)
-    {
-        {
-            add(String.valueOf(R.string.menu_browse_sites));
-            add(String.valueOf(R.string.menu_browse_favorites_folder));
-        }
-    };
+    /** Entry points displayed under the account root. */
+    private static final String[] ROOT_MENUS = new String[] { DocumentId.MENU_SITES, DocumentId.MENU_FAVORITES };
 
     protected static final String PARAM_URI = "uri";
 
     protected static final String PARAM_DOCUMENT_ID = "DocumentId";
 
+    /** Folder of the sparse content cache, inside the cache folder. */
+    private static final String CHUNKS_FOLDER = "chunks";
+
+    private static final int SITES_FAVORITES = 0;
+
+    private static final int SITES_MEMBER = 1;
+
+    private static final int SITES_ALL = 2;
+
     // //////////////////////////////////////////////////////////////////////
     // MEMBERS
     // //////////////////////////////////////////////////////////////////////
-    private AlfrescoSession session;
-
     private String mAuthority;
 
     private final ConcurrentHashMap<Uri, Boolean> mLoadingUris = new ConcurrentHashMap<Uri, Boolean>();
 
-    protected Map<String, Node> nodesIndex = new HashMap<String, Node>();
+    /** Error of the last loading by uri : listings are loaded in parallel. */
+    private final ConcurrentHashMap<Uri, RuntimeException> mLoadingErrors =
+            new ConcurrentHashMap<Uri, RuntimeException>();
+
+    // Indexes are written by the listing tasks while binder threads read
+    // them : each lookup is a single get.
+    // Only node summaries are kept : SDK nodes are requested again for
+    // content operations. Nodes are keyed by their document id : accounts of
+    // the same server never share a node. A node may be listed by several
+    // listings : the index has its own bound instead of following the
+    // listings cache.
+    protected LruCache<String, NodeSummary> nodesIndex;
+
+    protected final ConcurrentMap<String, NodeSummary> pathIndex = new ConcurrentHashMap<String, NodeSummary>();
 
-    protected Map<String, Node> pathIndex = new HashMap<String, Node>();
+    /** Sites are keyed by their document id, like nodes. */
+    protected final ConcurrentMap<String, Site> siteIndex = new ConcurrentHashMap<String, Site>();
 
-    protected Map<String, Site> siteIndex = new HashMap<String, Site>();
+    /** Site document library folder identifier by account & site identifier. */
+    protected final ConcurrentMap<String, String> documentLibraryIndex = new ConcurrentHashMap<String, String>();
 
     protected Folder parentFolder;
 
     private AccountManager accountManager;
 
-    private Map<String, Account> accountsIndex;
+    /** Published once complete : never modified afterwards. */
+    private volatile Map<String, Account> accountsIndex;
 
-    private Map<String, AlfrescoSession> sessionIndex;
+    private SessionPool sessionPool;
 
-    private Account selectedAccount;
+    private SessionWarmUp sessionWarmUp;
 
-    private String selectedUrl;
-
-    private Folder currentFolder;
+    private RepositoryInfoCache repositoryInfoCache;
 
     protected org.alfresco.mobile.android.api.model.Document createdNode;
 
-    protected AlfrescoException exception;
 
-    private int accountType;
+    private final ConcurrentHashMap<String, OAuthData> oauthDataIndex = new ConcurrentHashMap<String, OAuthData>();
+
+    private OAuthTokenRefresher tokenRefresher;
+
+    private int pageSize;
+
+    private ChildrenCache childrenCache;
 
-    private OAuthData oauthdata;
+    private StorageDatabaseHelper storageDatabase;
 
-    private ChildrenCursor tempCursor;
+    private ChangeLogSynchronizer changeLogSynchronizer;
+
+    private FolderPrefetcher folderPrefetcher;
+
+    private PriorityTaskExecutor taskExecutor;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    private ContentPipe contentPipe;
+
+    private ContentCacheManager cacheManager;
+
+    private boolean streamContent;
+
+    private SitesCache sitesCache;
+
+    private boolean includeAllSites;
 
     // //////////////////////////////////////////////////////////////////////
     // INIT
@@ -160,10 +226,118 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     @Override
     public boolean onCreate()
     {
+        storageDatabase = new StorageDatabaseHelper(getContext());
+        pageSize = getContext().getResources().getInteger(R.integer.config_listing_page_size);
+        childrenCache = new ChildrenCache(getContext().getResources().getInteger(
+                R.integer.config_children_cache_max_entries), getContext().getResources().getInteger(
+                R.integer.config_children_cache_ttl_seconds) * 1000L);
+        nodesIndex = new LruCache<String, NodeSummary>(getContext().getResources().getInteger(
+                R.integer.config_nodes_index_max_entries));
+        sitesCache = new SitesCache(
+                getContext().getResources().getInteger(R.integer.config_sites_cache_ttl_seconds) * 1000L);
+        includeAllSites = getContext().getResources().getBoolean(R.bool.config_sites_include_all);
+        taskExecutor = new PriorityTaskExecutor(getContext().getResources().getInteger(
+                R.integer.config_executor_max_threads), getContext().getResources().getInteger(
+                R.integer.config_executor_max_content), getContext().getResources().getInteger(
+                R.integer.config_executor_max_thumbnail), getContext().getResources().getInteger(
+                R.integer.config_executor_max_refresh), getContext().getResources().getInteger(
+                R.integer.config_executor_max_prefetch));
+        folderPrefetcher = new FolderPrefetcher(storageDatabase,
+                taskExecutor.getExecutor(PriorityTaskExecutor.PRIORITY_PREFETCH), getContext().getResources()
+                        .getInteger(R.integer.config_prefetch_max_requests), getContext().getResources().getInteger(
+                        R.integer.config_prefetch_max_items))
+        {
+            @Override
+            protected int prefetch(String accountName, AlfrescoSession session, String folderId,
+                    ListingSortOrder sortOrder, int maxItems)
+            {
+                return prefetchChildren(accountName, session, folderId, sortOrder, maxItems);
+            }
+        };
+        File chunksFolder = new File((getContext().getExternalCacheDir() != null) ? getContext()
+                .getExternalCacheDir() : getContext().getCacheDir(), CHUNKS_FOLDER);
+        SparseContentCache sparseContentCache = new SparseContentCache(chunksFolder, getContext().getResources()
+                .getInteger(R.integer.config_content_chunk_size_kb) * 1024, getContext().getResources().getInteger(
+                R.integer.config_content_max_chunks_per_request));
+        cacheManager = new ContentCacheManager(storageDatabase, sparseContentCache, getContext().getResources()
+                .getInteger(R.integer.config_cache_low_storage_percent) / 100f);
+        cacheManager.setQuota(Environment.DIRECTORY_DOWNLOADS, getContext().getResources().getInteger(
+                R.integer.config_cache_documents_quota_mb) * 1024L * 1024L);
+        cacheManager.setQuota(Environment.DIRECTORY_PICTURES, getContext().getResources().getInteger(
+                R.integer.config_cache_thumbnails_quota_mb) * 1024L * 1024L);
+        cacheManager.setChunksQuota(getContext().getResources().getInteger(R.integer.config_cache_chunks_quota_mb)
+                * 1024L * 1024L);
+        changeLogSynchronizer = new ChangeLogSynchronizer(getContext(), mAuthority, storageDatabase, childrenCache,
+                nodesIndex, cacheManager, getContext().getResources().getInteger(
+                        R.integer.config_change_log_token_lifetime_hours) * 3600000L);
+        getContext().registerReceiver(new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                cacheManager.onLowStorage();
+            }
+        }, new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW));
+        contentPipe = new ContentPipe(singleFlight, sparseContentCache, cacheManager,
+                taskExecutor.getExecutor(PriorityTaskExecutor.PRIORITY_CONTENT));
+        streamContent = getContext().getResources().getBoolean(R.bool.config_content_streaming_enabled);
+        repositoryInfoCache = new RepositoryInfoCache(getContext());
+        sessionPool = new SessionPool(getContext().getResources().getInteger(
+                R.integer.config_session_idle_timeout_minutes) * 60000L);
+        tokenRefresher = OAuthTokenRefresher.getInstance(getContext());
+        tokenRefresher.addListener(new OnTokenRefreshedListener()
+        {
+            @Override
+            public void onTokenRefreshed(Account account, OAuthData oauthData)
+            {
+                updateOAuthData(account, oauthData);
+            }
+        });
         checkAccounts();
+
+        if (getContext().getResources().getBoolean(R.bool.config_session_warmup_enabled))
+        {
+            sessionWarmUp = new SessionWarmUp(getContext(),
+                    taskExecutor.getExecutor(PriorityTaskExecutor.PRIORITY_REFRESH), getContext().getResources()
+                            .getInteger(R.integer.config_session_warmup_max_connections), getContext().getResources()
+                            .getBoolean(R.bool.config_session_warmup_unmetered_only))
+            {
+                @Override
+                protected void connect(Account account)
+                {
+                    // Cloud accounts without token need the user.
+                    if (canConnect(account))
+                    {
+                        obtainSession(account);
+                    }
+                }
+            };
+            sessionWarmUp.start(accountsIndex.values());
+        }
         return true;
     }
 
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_MODERATE)
+        {
+            // Sessions are connected again on demand.
+            sessionPool.evictAll();
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND)
+        {
+            sessionPool.evictIdle();
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args)
+    {
+        taskExecutor.dump(writer);
+    }
+
     // //////////////////////////////////////////////////////////////////////
     // PROVIDER METHODS
     // //////////////////////////////////////////////////////////////////////
@@ -197,105 +371,75 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
 
         final ChildrenCursor childrenCursor = new ChildrenCursor(resolveDocumentProjection(projection));
         final Uri uri = DocumentsContract.buildChildDocumentsUri(mAuthority, parentDocumentId);
-        int prefix = -1;
-        String parentDocumentIdValue = null;
-
-        // Decode Items Value
-        if (parentDocumentId != null)
-        {
-            int index = parentDocumentId.indexOf(SEPARATOR);
-            if (index == -1 && TextUtils.isDigitsOnly(parentDocumentId))
-            {
-                // Case : Android Resource Id
-                // This is a Menu Item
-                prefix = Integer.parseInt(parentDocumentId);
-                parentDocumentIdValue = null;
-            }
-            else if (index == -1
-                    && (NodeRefUtils.isNodeRef(parentDocumentId) || NodeRefUtils.isIdentifier(parentDocumentId)))
-            {
-                // Case : NodeRef
-                // This is a document / folder
-                parentDocumentIdValue = parentDocumentId;
-            }
-            else
-            {
-                // Case : Encoding value
-                // This is a a specific menu item
-                String prefixString = parentDocumentId.substring(0, index);
-                if (TextUtils.isDigitsOnly(prefixString))
-                {
-                    prefix = Integer.parseInt(prefixString);
-                }
-                parentDocumentIdValue = parentDocumentId.substring(index + 2);
-            }
-        }
+        final ListingSortOrder listingSortOrder = ListingSortOrder.parse(sortOrder);
+        final DocumentId documentId = DocumentId.decode(parentDocumentId);
+        if (documentId == null) { return childrenCursor; }
 
         // Dispatch value
         try
         {
             Boolean active = mLoadingUris.get(uri);
+            Account account = resolveAccount(documentId);
+            if (account != null)
+            {
+                childrenCursor.setAccountName(account.name);
+            }
+            final String cacheKey = getListingKey(account, documentId, listingSortOrder);
 
-            switch (prefix)
+            switch (documentId.getType())
             {
 
-                case PREFIX_ACCOUNT:
+                case DocumentId.TYPE_ACCOUNT:
                     // First Rows after account selection
                     // Display Top level Entry Points
-                    retrieveRootMenuChildren(uri, parentDocumentIdValue, childrenCursor);
-                    break;
-
-                case R.string.menu_browse_sites:
-                    // List of Sites
-                    if (active != null && !active)
-                    {
-                        fillSitesChildren(uri, active, childrenCursor);
-                    }
-                    else
-                    {
-                        retrieveSitesChildren(uri, parentDocumentIdValue, childrenCursor);
-                    }
+                    retrieveRootMenuChildren(uri, account, childrenCursor);
                     break;
 
-                case R.string.menu_browse_favorites_folder:
-                    // List favorite folders
-                    if (active != null && !active)
+                case DocumentId.TYPE_MENU:
+                    if (DocumentId.MENU_SITES.equals(documentId.getValue()))
                     {
-                        fillNodeChildren(uri, active, childrenCursor);
+                        // List of Sites
+                        if (fillCachedSites(uri, account, childrenCursor))
+                        {
+                            retrieveSitesChildren(uri, account, childrenCursor);
+                        }
                     }
-                    else
+                    else if (DocumentId.MENU_FAVORITES.equals(documentId.getValue()))
                     {
-                        retrieveFavoriteFoldersChildren(uri, parentDocumentIdValue, childrenCursor);
+                        // List favorite folders
+                        if (fillCachedChildren(uri, account, cacheKey, childrenCursor))
+                        {
+                            retrieveFavoriteFoldersChildren(uri, account, cacheKey, childrenCursor);
+                        }
                     }
                     break;
 
-                case PREFIX_SITE:
+                case DocumentId.TYPE_SITE:
                     // List children for a specific site
                     // i.e Document Library Children
-                    if (active != null && !active)
-                    {
-                        fillNodeChildren(uri, active, childrenCursor);
-                    }
-                    else
+                    if (fillCachedChildren(uri, account, cacheKey, childrenCursor))
                     {
-                        retrieveSiteDocumentLibraryChildren(uri, parentDocumentIdValue, childrenCursor);
+                        retrieveSiteDocumentLibraryChildren(uri, account, cacheKey, documentId.getValue(),
+                                listingSortOrder, childrenCursor);
                     }
                     break;
 
-                default:
+                case DocumentId.TYPE_NODE:
                     // Children browsing
-                    if (parentDocumentId == null) { return childrenCursor; }
-
-                    if (active != null && !active)
+                    if (active == null && account != null)
                     {
-                        fillNodeChildren(uri, active, childrenCursor);
+                        folderPrefetcher.recordAccess(account.name, documentId.getValue());
                     }
-                    else
+
+                    if (fillCachedChildren(uri, account, cacheKey, childrenCursor))
                     {
-                        retrieveFolderChildren(uri, parentDocumentIdValue, childrenCursor);
+                        retrieveFolderChildren(uri, account, cacheKey, documentId.getValue(), null,
+                                listingSortOrder, childrenCursor);
                     }
                     break;
 
+                default:
+                    break;
             }
         }
         catch (Exception e)
@@ -314,22 +458,35 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     {
         Log.d(TAG, "Query Document : " + documentId);
         final ChildrenCursor result = new ChildrenCursor(resolveDocumentProjection(projection));
+        DocumentId id = DocumentId.decode(documentId);
+        NodeSummary indexedNode = null;
+        NodeSummary storedNode = null;
+        Site indexedSite = null;
+        Account account = resolveAccount(id);
+        if (account != null)
+        {
+            result.setAccountName(account.name);
+        }
 
-        if (nodesIndex.containsKey(documentId))
+        if (id.getType() == DocumentId.TYPE_NODE && (indexedNode = getIndexedNode(account, id.getValue())) != null)
         {
-            addNodeRow(result, nodesIndex.get(documentId));
+            addNodeRow(result, indexedNode);
         }
-        else if (pathIndex.containsKey(documentId))
+        else if (id.getType() == DocumentId.TYPE_SITE
+                && (indexedSite = siteIndex.get(DocumentId.site((account != null) ? account.name : null,
+                        id.getValue()).getId())) != null)
         {
-            addNodeRow(result, pathIndex.get(documentId));
+            addSiteRow(result, indexedSite);
         }
-        else if (siteIndex.containsKey(documentId))
+        else if (id.getType() == DocumentId.TYPE_MENU && account != null)
         {
-            addSiteRow(result, siteIndex.get(documentId));
+            addRootMenuRow(result, id.getValue());
         }
-        else if (IMPORT_FOLDER_LIST.contains(documentId))
+        else if (id.getType() == DocumentId.TYPE_NODE && account != null
+                && (storedNode = storageDatabase.getNode(account.name, id.getValue())) != null)
         {
-            addRootMenuRow(result, Integer.parseInt(documentId));
+            // Last known values
+            addNodeRow(result, storedNode);
         }
         else
         {
@@ -351,47 +508,71 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     {
         Log.d(TAG, "Open Document : " + documentId);
 
-        Node currentNode = null;
+        Account account = resolveAccount(documentId);
+        if (account == null) { throw new FileNotFoundException(documentId); }
+        final AlfrescoSession session = obtainSession(account);
+        final DocumentId id = DocumentId.decode(documentId);
+        if (id.getType() != DocumentId.TYPE_NODE) { throw new FileNotFoundException(documentId); }
 
         // Retrieve node by its id
-        if (nodesIndex.containsKey(documentId))
-        {
-            currentNode = nodesIndex.get(documentId);
-        }
-        else
+        Node node = null;
+        NodeSummary currentNode = nodesIndex.get(DocumentId.node(account.name, id.getValue()).getId());
+        if (currentNode == null)
         {
-            currentNode = session.getServiceRegistry().getDocumentFolderService().getNodeByIdentifier(documentId);
+            node = getNode(account.name, session, id.getValue());
+            currentNode = NodeSummary.create(node);
         }
 
         // Check Document has Content
-        if (currentNode.isDocument()
-                && ((org.alfresco.mobile.android.api.model.Document) currentNode).getContentStreamLength() == 0) { return null; }
+        if (!currentNode.isFolder() && currentNode.getSize() == 0) { return null; }
 
         // Document has content so let's get it !
         // Store the document inside a temporary folder per account
-        File downloadedFile = StorageUtils.getStorageFolder(getContext(), Environment.DIRECTORY_DOWNLOADS, selectedUrl,
-                selectedAccount.name, currentNode.getName());
+        File downloadedFile = getContentFile(account, Environment.DIRECTORY_DOWNLOADS, currentNode);
 
         // Check the mode
         final int accessMode = ParcelFileDescriptor.parseMode(mode);
         final boolean isWrite = (mode.indexOf('w') != -1);
 
-        // Is Document in cache ?
-        if (downloadedFile.exists() && currentNode.getModifiedAt().getTimeInMillis() < downloadedFile.lastModified())
+        // Is Document in cache ? The file is specific to the node version.
+        if (downloadedFile.exists())
         {
             // Document available locally
             return createFileDescriptor(isWrite, downloadedFile, accessMode);
         }
 
         // Not in cache so let's download the content !
-        ContentStream contentStream = session.getServiceRegistry().getDocumentFolderService()
-                .getContentStream((org.alfresco.mobile.android.api.model.Document) currentNode);
+        putContentFile(account, Environment.DIRECTORY_DOWNLOADS, currentNode, downloadedFile);
+        final Node retrievedNode = node;
+        final String accountName = account.name;
+        Callable<ContentStream> contentSource = new Callable<ContentStream>()
+        {
+            @Override
+            public ContentStream call()
+            {
+                Node document = (retrievedNode != null) ? retrievedNode : getNode(accountName, session,
+                        id.getValue());
+                return session.getServiceRegistry().getDocumentFolderService()
+                        .getContentStream((org.alfresco.mobile.android.api.model.Document) document);
+            }
+        };
+
+        String contentKey = getContentKey("content", account.name, currentNode);
 
-        // Check Stream
-        if (contentStream == null || contentStream.getLength() == 0) { return null; }
+        // Read only : the client reads while the content is downloaded.
+        if (!isWrite && streamContent)
+        {
+            // Length known : chunks are fetched when the client reaches them.
+            if (currentNode.getSize() > 0 && session instanceof AbstractAlfrescoSessionImpl) { return contentPipe
+                    .open(contentKey, currentNode.getSize(),
+                            createRangeSource(session, id.getValue()), downloadedFile); }
+            return contentPipe.open(contentKey, contentSource, downloadedFile);
+        }
 
-        // Copy the content locally.
-        StorageUtils.copyFile(contentStream.getInputStream(), contentStream.getLength(), downloadedFile, signal);
+        SparseContentCache.RangeSource rangeSource = (session instanceof AbstractAlfrescoSessionImpl)
+                ? createRangeSource(session, id.getValue()) : null;
+        if (!downloadContent(contentKey, currentNode, contentSource, rangeSource, downloadedFile,
+                PriorityTaskExecutor.PRIORITY_CONTENT, signal)) { return null; }
 
         if (downloadedFile.exists())
         {
@@ -410,51 +591,59 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     {
         Log.v(TAG, "openDocumentThumbnail");
 
-        Node currentNode = null;
+        Account account = resolveAccount(documentId);
+        if (account == null) { return null; }
+        final AlfrescoSession session = obtainSession(account);
+        final DocumentId id = DocumentId.decode(documentId);
+        if (id.getType() != DocumentId.TYPE_NODE) { return null; }
 
         // Retrieve node by its id
-        if (nodesIndex.containsKey(documentId))
-        {
-            currentNode = nodesIndex.get(documentId);
-        }
-        else if (NodeRefUtils.isNodeRef(documentId))
-        {
-            // If the documentId is a NodeRef i.e a Node from Alfresco
-            currentNode = session.getServiceRegistry().getDocumentFolderService().getNodeByIdentifier(documentId);
-        }
-        else
+        Node node = null;
+        NodeSummary currentNode = nodesIndex.get(DocumentId.node(account.name, id.getValue()).getId());
+        if (currentNode == null)
         {
             // It's not a NodeRef, so nothing to display.
-            return null;
+            if (!NodeRefUtils.isNodeRef(id.getValue())) { return null; }
+
+            // If the documentId is a NodeRef i.e a Node from Alfresco
+            node = getNode(account.name, session, id.getValue());
+            currentNode = NodeSummary.create(node);
         }
 
         // Let's retrieve the thumbnail
         // Store the document inside a temporary folder per account
-        File downloadedFile = StorageUtils.getStorageFolder(getContext(), Environment.DIRECTORY_PICTURES, selectedUrl,
-                selectedAccount.name, currentNode.getName());
+        File downloadedFile = getContentFile(account, Environment.DIRECTORY_PICTURES, currentNode);
 
-        // Is Document in cache ?
-        if (downloadedFile.exists() && currentNode.getModifiedAt().getTimeInMillis() < downloadedFile.lastModified())
+        // Is Document in cache ? The file is specific to the node version.
+        if (downloadedFile.exists())
         {
             // Document available locally
-            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(downloadedFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            ParcelFileDescriptor pfd = createFileDescriptor(false, downloadedFile, ParcelFileDescriptor.MODE_READ_ONLY);
             return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
         }
 
         // Not in cache so let's download the content !
-        ContentStream contentStream = session.getServiceRegistry().getDocumentFolderService()
-                .getRenditionStream(currentNode, DocumentFolderService.RENDITION_THUMBNAIL);
-
-        // Check ContentStream
-        if (contentStream == null || contentStream.getLength() == 0) { return null; }
-
-        // Store the thumbnail locally
-        StorageUtils.copyFile(contentStream.getInputStream(), contentStream.getLength(), downloadedFile, signal);
+        putContentFile(account, Environment.DIRECTORY_PICTURES, currentNode, downloadedFile);
+        final Node retrievedNode = node;
+        final String accountName = account.name;
+        Callable<ContentStream> thumbnailSource = new Callable<ContentStream>()
+        {
+            @Override
+            public ContentStream call()
+            {
+                Node thumbnailNode = (retrievedNode != null) ? retrievedNode : getNode(accountName, session,
+                        id.getValue());
+                return session.getServiceRegistry().getDocumentFolderService()
+                        .getRenditionStream(thumbnailNode, DocumentFolderService.RENDITION_THUMBNAIL);
+            }
+        };
+        if (!downloadContent(getContentKey("thumbnail", accountName, currentNode), currentNode, thumbnailSource,
+                null, downloadedFile, PriorityTaskExecutor.PRIORITY_THUMBNAIL, signal)) { return null; }
 
         // Return the fileDescriptor
         if (downloadedFile.exists())
         {
-            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(downloadedFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            ParcelFileDescriptor pfd = createFileDescriptor(false, downloadedFile, ParcelFileDescriptor.MODE_READ_ONLY);
             return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
         }
         else
@@ -469,46 +658,29 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     {
         final ChildrenCursor childrenCursor = new ChildrenCursor(resolveDocumentProjection(projection));
         final Uri uri = DocumentsContract.buildSearchDocumentsUri(mAuthority, rootId, query);
+        final Account account = resolveAccount(rootId);
 
-        if (!hasSession(uri, childrenCursor)) { return childrenCursor; }
-
-        Boolean active = mLoadingUris.get(uri);
-
-        if (active != null)
-        {
-            for (Entry<String, Node> nodeEntry : nodesIndex.entrySet())
-            {
-                addNodeRow(childrenCursor, nodeEntry.getValue());
-            }
-            if (!active)
-            {
-                // loading request is finished and refreshed
-                mLoadingUris.remove(uri);
-            }
-        }
+        if (!hasSession(uri, account, childrenCursor)) { return childrenCursor; }
+        childrenCursor.setAccountName(account.name);
 
-        if (active == null)
+        final String cacheKey = getListingKey(account, uri);
+        if (fillCachedChildren(uri, account, cacheKey, childrenCursor))
         {
-            new StorageProviderAsyncTask(uri, childrenCursor, true)
+            new StorageProviderAsyncTask(uri, childrenCursor)
             {
                 @Override
-                protected Void doInBackground(Void... params)
+                protected void retrieve()
                 {
                     List<Node> nodes = new ArrayList<Node>();
 
                     // Use the Alfresco session and the searchService to
                     // retrieve documents based on keywords
-                    nodes = session.getServiceRegistry().getSearchService()
+                    nodes = obtainSession(account).getServiceRegistry().getSearchService()
                             .keywordSearch(query, new KeywordSearchOptions());
 
-                    for (Node node : nodes)
-                    {
-                        nodesIndex.put(node.getIdentifier(), node);
-                    }
-
-                    return null;
+                    childrenCache.put(cacheKey, indexNodes(account.name, nodes), true);
                 }
-            }.execute();
+            }.submit();
         }
         return childrenCursor;
     }
@@ -520,30 +692,18 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
 
         final ChildrenCursor recentDocumentsCursor = new ChildrenCursor(resolveDocumentProjection(projection));
         final Uri uri = DocumentsContract.buildRecentDocumentsUri(mAuthority, rootId);
+        final Account account = resolveAccount(rootId);
 
-        if (!hasSession(uri, recentDocumentsCursor)) { return recentDocumentsCursor; }
-
-        Boolean active = mLoadingUris.get(uri);
-
-        if (active != null)
-        {
-            for (Entry<String, Node> nodeEntry : nodesIndex.entrySet())
-            {
-                addNodeRow(recentDocumentsCursor, nodeEntry.getValue());
-            }
-            if (!active)
-            {
-                // loading request is finished and refreshed
-                mLoadingUris.remove(uri);
-            }
-        }
+        if (!hasSession(uri, account, recentDocumentsCursor)) { return recentDocumentsCursor; }
+        recentDocumentsCursor.setAccountName(account.name);
 
-        if (active == null)
+        final String cacheKey = getListingKey(account, uri);
+        if (fillCachedChildren(uri, account, cacheKey, recentDocumentsCursor))
         {
-            new StorageProviderAsyncTask(uri, recentDocumentsCursor, true)
+            new StorageProviderAsyncTask(uri, recentDocumentsCursor)
             {
                 @Override
-                protected Void doInBackground(Void... params)
+                protected void retrieve()
                 {
 
                     List<Node> nodes = new ArrayList<Node>();
@@ -552,18 +712,13 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
                     String formatedDate = DateUtils.format(calendar);
 
                     Log.d(TAG, "Recent Document : " + String.format(QUERY_RECENT, formatedDate));
-                    nodes = session.getServiceRegistry().getSearchService()
+                    nodes = obtainSession(account).getServiceRegistry().getSearchService()
                             .search(String.format(QUERY_RECENT, formatedDate), SearchLanguage.CMIS);
                     Log.d(TAG, "Recent Document : " + nodes.size());
 
-                    for (Node node : nodes)
-                    {
-                        nodesIndex.put(node.getIdentifier(), node);
-                    }
-
-                    return null;
+                    childrenCache.put(cacheKey, indexNodes(account.name, nodes), true);
                 }
-            }.execute();
+            }.submit();
         }
         return recentDocumentsCursor;
     }
@@ -574,6 +729,8 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         Log.v(TAG, "deleteDocument");
 
         final Uri uri = DocumentsContract.buildDocumentUri(mAuthority, documentId);
+        final Account account = resolveAccount(documentId);
+        final String nodeId = DocumentId.decode(documentId).getValue();
 
         Boolean active = mLoadingUris.get(uri);
 
@@ -583,7 +740,7 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
             mLoadingUris.remove(uri);
         }
 
-        if (active == null && session != null)
+        if (active == null && canConnect(account))
         {
             mLoadingUris.put(uri, Boolean.TRUE);
 
@@ -593,17 +750,19 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
                 @Override
                 protected Void doInBackground(Void... params)
                 {
-                    Node currentNode;
-                    if (nodesIndex.containsKey(documentId))
+                    try
                     {
-                        currentNode = nodesIndex.get(documentId);
+                        AlfrescoSession session = obtainSession(account);
+                        session.getServiceRegistry().getDocumentFolderService()
+                                .deleteNode(getNode(account.name, session, nodeId));
+                        nodesIndex.remove(DocumentId.node(account.name, nodeId).getId());
+                        childrenCache.invalidateContaining(account.name, nodeId);
+                        storageDatabase.deleteNode(account.name, nodeId);
                     }
-                    else
+                    catch (AlfrescoException e)
                     {
-                        currentNode = session.getServiceRegistry().getDocumentFolderService()
-                                .getNodeByIdentifier(documentId);
+                        Log.w(TAG, Log.getStackTraceString(e));
                     }
-                    session.getServiceRegistry().getDocumentFolderService().deleteNode(currentNode);
                     return null;
                 }
 
@@ -612,9 +771,9 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
                     mLoadingUris.put(uri, Boolean.FALSE);
                     getContext().getContentResolver().notifyChange(uri, null);
                 };
-            }.execute();
+            }.executeOnExecutor(taskExecutor.getExecutor(PriorityTaskExecutor.PRIORITY_USER_ACTION));
         }
-        else if (session == null)
+        else if (active == null)
         {
             // Session unavailable
             // User needs to open the application
@@ -630,6 +789,8 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         Log.v(TAG, "Create Document");
 
         final Uri uri = DocumentsContract.buildDocumentUri(mAuthority, parentDocumentId);
+        final Account account = resolveAccount(parentDocumentId);
+        final DocumentId parentId = DocumentId.decode(parentDocumentId);
 
         Boolean active = mLoadingUris.get(uri);
 
@@ -637,10 +798,12 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         {
             // loading request is finished and refreshed
             mLoadingUris.remove(uri);
-            return createdNode.getIdentifier();
+            if (createdNode == null) { throw new FileNotFoundException(parentDocumentId); }
+            return DocumentId.node(account.name, createdNode.getIdentifier()).getId();
         }
 
-        if (active == null && session != null)
+        if (active == null && canConnect(account)
+                && (parentId.getType() == DocumentId.TYPE_NODE || parentId.getType() == DocumentId.TYPE_SITE))
         {
             mLoadingUris.put(uri, Boolean.TRUE);
 
@@ -650,23 +813,29 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
                 @Override
                 protected Void doInBackground(Void... params)
                 {
-                    Node currentNode;
-                    if (nodesIndex.containsKey(parentDocumentId))
-                    {
-                        currentNode = nodesIndex.get(parentDocumentId);
-                    }
-                    else if (pathIndex.containsKey(parentDocumentId))
+                    try
                     {
-                        currentNode = nodesIndex.get(parentDocumentId);
+                        AlfrescoSession session = obtainSession(account);
+                        Folder currentFolder = null;
+                        if (parentId.getType() == DocumentId.TYPE_SITE)
+                        {
+                            currentFolder = getDocumentLibrary(session, account.name, parentId.getValue());
+                        }
+                        else
+                        {
+                            currentFolder = (Folder) getNode(account.name, session, parentId.getValue());
+                        }
+                        String listingKey = getListingKey(account, parentId, null);
+                        createdNode = session.getServiceRegistry().getDocumentFolderService()
+                                .createDocument(currentFolder, displayName, null, null);
+                        childrenCache.invalidate(listingKey);
+                        storageDatabase.deleteChildren(listingKey);
                     }
+                    catch (AlfrescoException e)
                     {
-                        currentNode = session.getServiceRegistry().getDocumentFolderService()
-                                .getNodeByIdentifier(parentDocumentId);
+                        Log.w(TAG, Log.getStackTraceString(e));
+                        createdNode = null;
                     }
-
-                    createdNode = session.getServiceRegistry().getDocumentFolderService()
-                            .createDocument((Folder) currentNode, displayName, null, null);
-
                     return null;
                 }
 
@@ -675,9 +844,9 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
                     mLoadingUris.put(uri, Boolean.FALSE);
                     getContext().getContentResolver().notifyChange(uri, null);
                 };
-            }.execute();
+            }.executeOnExecutor(taskExecutor.getExecutor(PriorityTaskExecutor.PRIORITY_USER_ACTION));
         }
-        else if (session == null)
+        else if (active == null)
         {
             // Session unavailable
             // User needs to open the application
@@ -714,19 +883,218 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         if (accountsIndex == null || accountsIndex.isEmpty())
         {
             accountManager = AccountManager.get(getContext());
-            Account[] accounts = accountManager.getAccountsByType(AccountConstants.ACCOUNT_TYPE);
-            accountsIndex = new HashMap<String, Account>(accounts.length);
-            sessionIndex = new HashMap<String, AlfrescoSession>(accounts.length);
-            for (Account account : accounts)
+            Account[] accountsByType = accountManager.getAccountsByType(AccountConstants.ACCOUNT_TYPE);
+            Map<String, Account> accounts = new HashMap<String, Account>(accountsByType.length);
+            for (Account account : accountsByType)
             {
-                accountsIndex.put(account.name, account);
+                accounts.put(account.name, account);
             }
+            accountsIndex = accounts;
         }
     }
 
-    private boolean hasSession(Uri uri, ChildrenCursor childrenCursor)
+    /**
+     * Allowable actions are retrieved with each listing : permissions of a
+     * node can then be computed locally without one request per row.
+     */
+    private static void includeAllowableActions(AlfrescoSession alfrescoSession)
     {
-        if (session == null)
+        if (alfrescoSession instanceof AbstractAlfrescoSessionImpl)
+        {
+            ((AbstractAlfrescoSessionImpl) alfrescoSession).getCmisSession().getDefaultContext()
+                    .setIncludeAllowableActions(true);
+        }
+    }
+
+    /**
+     * Find the account a document belongs to : identifiers carry their
+     * account.
+     * 
+     * @return the account or null if unknown.
+     */
+    private Account resolveAccount(String documentId)
+    {
+        return resolveAccount(DocumentId.decode(documentId));
+    }
+
+    private Account resolveAccount(DocumentId documentId)
+    {
+        checkAccounts();
+
+        Map<String, Account> accounts = accountsIndex;
+        if (documentId != null && documentId.getAccountName() != null) { return accounts
+                .get(documentId.getAccountName()); }
+
+        // Identifiers of previous versions don't carry their account.
+        return (accounts.size() == 1) ? accounts.values().iterator().next() : null;
+    }
+
+    /**
+     * @return the node from the listing or the path index, null if not
+     *         indexed.
+     */
+    private NodeSummary getIndexedNode(Account account, String nodeId)
+    {
+        String key = DocumentId.node((account != null) ? account.name : null, nodeId).getId();
+        NodeSummary node = nodesIndex.get(key);
+        return (node != null) ? node : pathIndex.get(key);
+    }
+
+    /**
+     * @return the key of the listing : the parent document id with its account
+     *         (identifiers of previous versions don't carry it) and the sort
+     *         order.
+     */
+    private static String getListingKey(Account account, DocumentId parentId, ListingSortOrder sortOrder)
+    {
+        String accountName = (account != null) ? account.name : parentId.getAccountName();
+        switch (parentId.getType())
+        {
+            case DocumentId.TYPE_NODE:
+                return ChildrenCache.getNodeKey(accountName, parentId.getValue(), sortOrder);
+            case DocumentId.TYPE_SITE:
+                return ChildrenCache.getKey(DocumentId.site(accountName, parentId.getValue()).getId(), sortOrder);
+            default:
+                return parentId.getId();
+        }
+    }
+
+    /**
+     * @return the key of a search or recent documents listing : kept under the
+     *         account root.
+     */
+    private static String getListingKey(Account account, Uri uri)
+    {
+        return DocumentId.account(account.name).getId() + ChildrenCache.KEY_SEPARATOR + uri.toString();
+    }
+
+    private int getAccountType(Account account)
+    {
+        return Integer.parseInt(accountManager.getUserData(account, AccountConstants.ACCOUNT_NAME));
+    }
+
+    private String getAccountUrl(Account account)
+    {
+        return accountManager.getUserData(account, AccountConstants.ACCOUNT_URL);
+    }
+
+    /**
+     * @return true if a session is available or can be connected without the
+     *         user.
+     */
+    private boolean canConnect(Account account)
+    {
+        if (account == null) { return false; }
+        if (sessionPool.contains(account.name)) { return true; }
+        switch (getAccountType(account))
+        {
+            case AccountConstants.ACCOUNT_CLOUD_VALUE:
+                return oauthDataIndex.containsKey(account.name);
+            case AccountConstants.ACCOUNT_ONPREMISE_VALUE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Session of the account from the pool. The session is connected if
+     * needed : must be called in background. The tokens of a cloud session
+     * are refreshed first if they are about to expire (i.e background refresh
+     * missed while the device was asleep).
+     * 
+     * @throws AlfrescoSessionException if the session can't be connected.
+     * @throws AlfrescoException if the tokens can't be refreshed.
+     */
+    private AlfrescoSession obtainSession(final Account account)
+    {
+        AlfrescoSession alfrescoSession = sessionPool.get(account.name);
+        if (alfrescoSession instanceof CloudSession && tokenRefresher.isExpiring(account))
+        {
+            // Listeners update the session with the new tokens.
+            tokenRefresher.refresh(account);
+        }
+        if (alfrescoSession != null) { return alfrescoSession; }
+
+        // Concurrent requests of the same account share the same connection.
+        return singleFlight.execute("session:" + account.name, new Callable<AlfrescoSession>()
+        {
+            @Override
+            public AlfrescoSession call()
+            {
+                AlfrescoSession alfrescoSession = sessionPool.get(account.name);
+                if (alfrescoSession != null) { return alfrescoSession; }
+
+                if (repositoryInfoCache.contains(account))
+                {
+                    try
+                    {
+                        alfrescoSession = connect(account, true);
+                        repositoryInfoCache.validate(account, alfrescoSession);
+                    }
+                    catch (AlfrescoSessionException e)
+                    {
+                        // Credentials won't be better with a discovery.
+                        if (e.getErrorCode() == ErrorCodeRegistry.SESSION_UNAUTHORIZED) { throw e; }
+
+                        // Bootstrap data may be outdated : discover the
+                        // repository again.
+                        Log.w(TAG, Log.getStackTraceString(e));
+                        repositoryInfoCache.invalidate(account);
+                    }
+                }
+                if (alfrescoSession == null)
+                {
+                    alfrescoSession = connect(account, false);
+                    repositoryInfoCache.put(account, alfrescoSession);
+                }
+
+                includeAllowableActions(alfrescoSession);
+                changeLogSynchronizer.initToken(account, alfrescoSession);
+                sessionPool.put(account.name, alfrescoSession);
+                return alfrescoSession;
+            }
+        });
+    }
+
+    /**
+     * @param useCache : true to connect with the persisted bootstrap data.
+     * @throws AlfrescoSessionException if the session can't be connected.
+     */
+    private AlfrescoSession connect(Account account, boolean useCache)
+    {
+        Map<String, Serializable> settings = useCache ? repositoryInfoCache.getSettings(account)
+                : new HashMap<String, Serializable>(0);
+        AlfrescoSession alfrescoSession = null;
+        switch (getAccountType(account))
+        {
+            case AccountConstants.ACCOUNT_CLOUD_VALUE:
+                if (oauthDataIndex.containsKey(account.name))
+                {
+                    // Never connect with a token about to expire.
+                    OAuthData oauthData = tokenRefresher.getValidOAuthData(account);
+                    oauthDataIndex.put(account.name, oauthData);
+                    alfrescoSession = CloudSession.connect(oauthData, settings);
+                    tokenRefresher.schedule(account);
+                }
+                break;
+            case AccountConstants.ACCOUNT_ONPREMISE_VALUE:
+                alfrescoSession = RepositorySession.connect(
+                        useCache ? repositoryInfoCache.getUrl(account) : getAccountUrl(account), account.name,
+                        accountManager.getPassword(account), settings);
+                break;
+            default:
+                break;
+        }
+
+        if (alfrescoSession == null) { throw new AlfrescoSessionException(ErrorCodeRegistry.SESSION_GENERIC,
+                "Refresh required."); }
+        return alfrescoSession;
+    }
+
+    private boolean hasSession(Uri uri, Account account, ChildrenCursor childrenCursor)
+    {
+        if (!canConnect(account))
         {
             // Session unavailable
             // User needs to open the application
@@ -746,14 +1114,13 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     private void addRootRow(ChildrenCursor result, Account account)
     {
         ChildrenCursor.RowBuilder row = result.newRow();
-        row.add(Root.COLUMN_ROOT_ID, encodeItem(PREFIX_ACCOUNT, account.name));
+        row.add(Root.COLUMN_ROOT_ID, DocumentId.account(account.name).getId());
         row.add(Root.COLUMN_SUMMARY, account.name);
         row.add(Root.COLUMN_FLAGS, Root.FLAG_SUPPORTS_CREATE | Root.FLAG_SUPPORTS_SEARCH | Root.FLAG_SUPPORTS_RECENTS);
-        row.add(Root.COLUMN_DOCUMENT_ID, encodeItem(PREFIX_ACCOUNT, account.name));
+        row.add(Root.COLUMN_DOCUMENT_ID, DocumentId.account(account.name).getId());
 
         // Type & Logo
-        accountType = Integer.parseInt(accountManager.getUserData(account, AccountConstants.ACCOUNT_NAME));
-        switch (accountType)
+        switch (getAccountType(account))
         {
             case AccountConstants.ACCOUNT_CLOUD_VALUE:
                 row.add(Root.COLUMN_TITLE, getContext().getString(R.string.account_alfresco_cloud));
@@ -773,83 +1140,74 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     // //////////////////////////////////////////////////////////////////////
     // ROOT MENU
     // //////////////////////////////////////////////////////////////////////
-    private void retrieveRootMenuChildren(Uri uri, final String parentDocumentId, ChildrenCursor rootMenuCursor)
+    private void retrieveRootMenuChildren(Uri uri, final Account account, ChildrenCursor rootMenuCursor)
     {
         Log.v(TAG, "retrieveRootMenuChildren");
 
-        checkAccounts();
-
-        selectedAccount = accountsIndex.get(parentDocumentId);
-        selectedUrl = accountManager.getUserData(selectedAccount, AccountConstants.ACCOUNT_URL);
+        if (account == null)
+        {
+            rootMenuCursor.setErrorInformation("Unknown account.");
+            return;
+        }
 
         Boolean active = mLoadingUris.get(uri);
-        Boolean available = sessionIndex.containsKey(selectedAccount.name);
+        boolean available = sessionPool.contains(account.name);
+
+        if (active == null)
+        {
+            // Most recently used accounts are warmed up first.
+            accountManager.setUserData(account, AccountConstants.ACCOUNT_LAST_USED,
+                    String.valueOf(System.currentTimeMillis()));
+        }
 
         Log.v(TAG, "active " + active + " available " + available);
 
         if (active != null || available)
         {
-            fillRootMenuCursor(uri, active, rootMenuCursor);
+            fillRootMenuCursor(uri, account, active, rootMenuCursor);
             return;
         }
 
-        if (active == null)
+        new StorageProviderAsyncTask(uri, rootMenuCursor)
         {
-            new StorageProviderAsyncTask(uri, rootMenuCursor)
+            @Override
+            protected void retrieve()
             {
-                @Override
-                protected Void doInBackground(Void... params)
+                if (getAccountType(account) == AccountConstants.ACCOUNT_CLOUD_VALUE
+                        && !oauthDataIndex.containsKey(account.name))
                 {
-                    try
-                    {
-                        switch (accountType)
-                        {
-                            case AccountConstants.ACCOUNT_CLOUD_VALUE:
-                                if (oauthdata == null)
-                                {
-                                    Bundle options = new Bundle();
-                                    options.putString(PARAM_URI, uri.toString());
-                                    options.putString(PARAM_DOCUMENT_ID, parentDocumentId);
-                                    tempCursor = childrenCursor;
-                                    accountManager.getAuthToken(selectedAccount, AccountConstants.ACCOUNT_TYPE,
-                                            options, false, AlfrescoStorageAccessProvider.this, null);
-                                }
-                                else
-                                {
-                                    session = CloudSession.connect(oauthdata);
-                                }
-                                break;
-                            case AccountConstants.ACCOUNT_ONPREMISE_VALUE:
-                                session = RepositorySession.connect(selectedUrl, selectedAccount.name,
-                                        accountManager.getPassword(selectedAccount));
-                                break;
-                            default:
-                                break;
-                        }
-                    }
-                    catch (AlfrescoException e)
-                    {
-                        Log.v(TAG, "AlfrescoException");
-                        exception = e;
-                    }
-                    return null;
+                    Bundle options = new Bundle();
+                    options.putString(PARAM_URI, uri.toString());
+                    options.putString(PARAM_DOCUMENT_ID, account.name);
+                    accountManager.getAuthToken(account, AccountConstants.ACCOUNT_TYPE, options, false,
+                            AlfrescoStorageAccessProvider.this, null);
                 }
-            }.execute();
-        }
+                else
+                {
+                    obtainSession(account);
+                }
+            }
+        }.submit();
     }
 
-    private void fillRootMenuCursor(Uri uri, Boolean active, ChildrenCursor rootMenuCursor)
+    private void fillRootMenuCursor(Uri uri, Account account, Boolean active, ChildrenCursor rootMenuCursor)
     {
         Log.v(TAG, "fillRootMenuCursor");
 
         if (hasError(uri, active, rootMenuCursor)) { return; }
-        if (!hasSession(uri, rootMenuCursor)) { return; }
+        AlfrescoSession session = sessionPool.get(account.name);
+        if (session == null)
+        {
+            // Session unavailable
+            // User needs to open the application
+            removeUri(uri, active);
+            rootMenuCursor.setErrorInformation("Refresh required.");
+            return;
+        }
 
-        int id = -1;
-        for (String idValue : IMPORT_FOLDER_LIST)
+        for (String menu : ROOT_MENUS)
         {
-            id = Integer.parseInt(idValue);
-            addRootMenuRow(rootMenuCursor, id);
+            addRootMenuRow(rootMenuCursor, menu);
         }
         if (session.getRootFolder() != null)
         {
@@ -858,11 +1216,12 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         removeUri(uri, active);
     }
 
-    private void addRootMenuRow(ChildrenCursor rootMenuCursor, int id)
+    private void addRootMenuRow(ChildrenCursor rootMenuCursor, String menu)
     {
         ChildrenCursor.RowBuilder row = rootMenuCursor.newRow();
-        row.add(Document.COLUMN_DOCUMENT_ID, id);
-        row.add(Document.COLUMN_DISPLAY_NAME, getContext().getString(id));
+        row.add(Document.COLUMN_DOCUMENT_ID, DocumentId.menu(rootMenuCursor.getAccountName(), menu).getId());
+        row.add(Document.COLUMN_DISPLAY_NAME, getContext().getString(DocumentId.MENU_SITES.equals(menu)
+                ? R.string.menu_browse_sites : R.string.menu_browse_favorites_folder));
         row.add(Document.COLUMN_SIZE, null);
         row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
         row.add(Document.COLUMN_LAST_MODIFIED, null);
@@ -872,31 +1231,123 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     // //////////////////////////////////////////////////////////////////////
     // SITES
     // //////////////////////////////////////////////////////////////////////
-    private void retrieveSitesChildren(final Uri uri, final String parentFolderId, ChildrenCursor sitesCursor)
+    /**
+     * Sites are retrieved page by page : favorite sites first, then the sites
+     * the user is member of and optionally all other sites.
+     */
+    private void retrieveSitesChildren(final Uri uri, final Account account, ChildrenCursor sitesCursor)
     {
-        if (!hasSession(uri, sitesCursor)) { return; }
+        if (!hasSession(uri, account, sitesCursor)) { return; }
+
+        final String accountName = account.name;
         new StorageProviderAsyncTask(uri, sitesCursor)
         {
             @Override
-            protected Void doInBackground(Void... params)
+            protected void retrieve()
             {
-                List<Site> sites = session.getServiceRegistry().getSiteService().getSites();
-                for (Site site : sites)
+                AlfrescoSession session = obtainSession(account);
+                SitesCache.CacheEntry cachedEntry = sitesCache.get(accountName);
+                boolean revalidate = cachedEntry != null && cachedEntry.isComplete();
+
+                List<Site> sites = new ArrayList<Site>();
+                Set<String> siteIds = new HashSet<String>();
+                int[] sources = includeAllSites ? new int[] { SITES_FAVORITES, SITES_MEMBER, SITES_ALL }
+                        : new int[] { SITES_FAVORITES, SITES_MEMBER };
+                for (int source : sources)
                 {
-                    siteIndex.put(site.getIdentifier(), site);
+                    ListingContext listingContext = createListingContext(null, pageSize);
+                    PagingResult<Site> page = null;
+                    do
+                    {
+                        page = getSitesPage(session, source, listingContext);
+                        for (Site site : page.getList())
+                        {
+                            if (siteIds.add(site.getIdentifier()))
+                            {
+                                sites.add(site);
+                                siteIndex.put(DocumentId.site(accountName, site.getIdentifier()).getId(), site);
+                            }
+                        }
+                        listingContext.setSkipCount(listingContext.getSkipCount() + page.getList().size());
+
+                        if (!revalidate)
+                        {
+                            sitesCache.put(accountName, sites, false);
+                            publishProgress();
+                        }
+                    }
+                    while (hasMoreItems(page) && !isCancelled());
+                }
+
+                if (!isCancelled())
+                {
+                    sitesCache.put(accountName, sites, true);
                 }
-                return null;
             }
-        }.execute();
+        }.submit();
     }
 
-    private void fillSitesChildren(Uri uri, Boolean active, ChildrenCursor sitesCursor)
+    private PagingResult<Site> getSitesPage(AlfrescoSession session, int source, ListingContext listingContext)
+    {
+        SiteService siteService = session.getServiceRegistry().getSiteService();
+        switch (source)
+        {
+            case SITES_FAVORITES:
+                try
+                {
+                    return siteService.getFavoriteSites(listingContext);
+                }
+                catch (AlfrescoServiceException e)
+                {
+                    // Favorite sites are not available on all servers.
+                    Log.w(TAG, Log.getStackTraceString(e));
+                    return new PagingResultImpl<Site>(new ArrayList<Site>(0), false, 0);
+                }
+            case SITES_MEMBER:
+                return siteService.getSites(listingContext);
+            default:
+                return siteService.getAllSites(listingContext);
+        }
+    }
+
+    /**
+     * Fill the cursor with the cached sites listing if available.
+     * 
+     * @return true if the listing must be retrieved or revalidated from the
+     *         server.
+     */
+    private boolean fillCachedSites(Uri uri, Account account, ChildrenCursor sitesCursor)
+    {
+        Boolean active = mLoadingUris.get(uri);
+        SitesCache.CacheEntry cachedEntry = (account != null) ? sitesCache.get(account.name) : null;
+
+        if (cachedEntry == null && hasError(uri, active, sitesCursor)) { return false; }
+
+        fillSitesChildren(uri, account, active, cachedEntry, sitesCursor);
+
+        return active == null
+                && (cachedEntry == null || !cachedEntry.isComplete() || sitesCache.isStale(cachedEntry));
+    }
+
+    private void fillSitesChildren(Uri uri, Account account, Boolean active, SitesCache.CacheEntry cachedEntry,
+            ChildrenCursor sitesCursor)
     {
         if (hasError(uri, active, sitesCursor)) { return; }
-        if (!hasSession(uri, sitesCursor)) { return; }
-        for (Entry<String, Site> siteEntry : siteIndex.entrySet())
+        if (!hasSession(uri, account, sitesCursor)) { return; }
+
+        if (cachedEntry != null)
+        {
+            for (Site site : cachedEntry.getSites())
+            {
+                addSiteRow(sitesCursor, site);
+            }
+        }
+
+        if (active != null && active)
         {
-            addSiteRow(sitesCursor, siteEntry.getValue());
+            // Listing is still loading : keep the client listening
+            sitesCursor.setIsLoading(true);
+            sitesCursor.setNotificationUri(getContext().getContentResolver(), uri);
         }
         removeUri(uri, active);
     }
@@ -904,7 +1355,8 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
     private void addSiteRow(ChildrenCursor sitesCursor, Site site)
     {
         ChildrenCursor.RowBuilder row = sitesCursor.newRow();
-        row.add(Document.COLUMN_DOCUMENT_ID, encodeItem(PREFIX_SITE, site.getIdentifier()));
+        row.add(Document.COLUMN_DOCUMENT_ID, DocumentId.site(sitesCursor.getAccountName(), site.getIdentifier())
+                .getId());
         row.add(Document.COLUMN_DISPLAY_NAME, site.getTitle());
         row.add(Document.COLUMN_SIZE, null);
         row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
@@ -913,184 +1365,650 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         row.add(Document.COLUMN_ICON, R.drawable.ic_site);
     }
 
-    private void retrieveSiteDocumentLibraryChildren(final Uri uri, String parentDocumentId, ChildrenCursor sitesCursor)
+    private void retrieveSiteDocumentLibraryChildren(final Uri uri, Account account, String cacheKey,
+            String siteId, ListingSortOrder sortOrder, ChildrenCursor sitesCursor)
     {
-        if (!hasSession(uri, sitesCursor)) { return; }
+        // The document library is resolved in background
+        retrieveFolderChildren(uri, account, cacheKey, null, siteId, sortOrder, sitesCursor);
+    }
 
-        Site currentSite = null;
-        if (siteIndex != null && siteIndex.containsKey(parentDocumentId))
+    /**
+     * Resolve the document library folder of the site. The mapping site /
+     * document library is kept in memory and in the persistent cache : only
+     * the folder itself is requested once known.
+     */
+    private Folder getDocumentLibrary(AlfrescoSession session, String accountName, String siteId)
+    {
+        String libraryKey = accountName.concat(SEPARATOR).concat(siteId);
+        String folderId = documentLibraryIndex.get(libraryKey);
+        if (folderId == null)
         {
-            currentSite = siteIndex.get(parentDocumentId);
+            folderId = storageDatabase.getDocumentLibraryId(accountName, siteId);
         }
-        else
+
+        if (folderId != null)
         {
-            currentSite = session.getServiceRegistry().getSiteService().getSite(parentDocumentId);
+            try
+            {
+                Folder documentLibraryFolder = (Folder) getNode(accountName, session, folderId);
+                documentLibraryIndex.put(libraryKey, folderId);
+                return documentLibraryFolder;
+            }
+            catch (AlfrescoServiceException e)
+            {
+                // Document library has been removed : resolve it again.
+                documentLibraryIndex.remove(libraryKey);
+            }
         }
 
-        Folder documentLibraryFolder = session.getServiceRegistry().getSiteService().getDocumentLibrary(currentSite);
+        Site currentSite = siteIndex.get(DocumentId.site(accountName, siteId).getId());
+        if (currentSite == null)
+        {
+            currentSite = session.getServiceRegistry().getSiteService().getSite(siteId);
+        }
 
-        retrieveFolderChildren(uri, documentLibraryFolder.getIdentifier(), sitesCursor);
+        Folder documentLibraryFolder = session.getServiceRegistry().getSiteService().getDocumentLibrary(currentSite);
+        documentLibraryIndex.put(libraryKey, documentLibraryFolder.getIdentifier());
+        storageDatabase.putDocumentLibraryId(accountName, siteId, documentLibraryFolder.getIdentifier());
+        return documentLibraryFolder;
     }
 
     // //////////////////////////////////////////////////////////////////////
     // FAVORITES FOLDER
     // //////////////////////////////////////////////////////////////////////
-    private void retrieveFavoriteFoldersChildren(final Uri uri, final String parentFolderId,
+    private void retrieveFavoriteFoldersChildren(final Uri uri, final Account account, final String cacheKey,
             ChildrenCursor childrenCursor)
     {
-        if (!hasSession(uri, childrenCursor)) { return; }
+        if (!hasSession(uri, account, childrenCursor)) { return; }
 
-        new StorageProviderAsyncTask(uri, childrenCursor, true)
+        new StorageProviderAsyncTask(uri, childrenCursor)
         {
             @Override
-            protected Void doInBackground(Void... params)
+            protected void retrieve()
             {
-                List<Folder> folders = new ArrayList<Folder>();
-                folders = session.getServiceRegistry().getDocumentFolderService().getFavoriteFolders();
-                for (Node node : folders)
-                {
-                    nodesIndex.put(node.getIdentifier(), node);
-                }
-                return null;
+                List<NodeSummary> folders = indexNodes(account.name, obtainSession(account).getServiceRegistry()
+                        .getDocumentFolderService().getFavoriteFolders());
+                childrenCache.put(cacheKey, folders, true);
+                storeChildren(account.name, cacheKey, folders);
             }
-        }.execute();
+        }.submit();
     }
 
     // //////////////////////////////////////////////////////////////////////
     // DOCUMENTS & FOLDERS
     // //////////////////////////////////////////////////////////////////////
-    private void retrieveFolderChildren(final Uri uri, final String parentFolderId, ChildrenCursor childrenCursor)
+    /**
+     * @param parentFolderId : Folder identifier or null for the root folder.
+     * @param siteId : If not null, the document library of this site is
+     *            listed.
+     */
+    private void retrieveFolderChildren(final Uri uri, final Account account, final String cacheKey,
+            final String parentFolderId, final String siteId, final ListingSortOrder sortOrder,
+            ChildrenCursor childrenCursor)
     {
-        if (!hasSession(uri, childrenCursor)) { return; }
+        if (!hasSession(uri, account, childrenCursor)) { return; }
 
-        new StorageProviderAsyncTask(uri, childrenCursor, true)
+        final String accountName = account.name;
+
+        new StorageProviderAsyncTask(uri, childrenCursor)
         {
             @Override
-            protected Void doInBackground(Void... params)
+            protected void retrieve()
             {
-                Log.d(TAG, "Parent ID : " + parentFolderId);
-                List<Node> nodes = new ArrayList<Node>();
-                if (parentFolderId == null)
+                // Another client or the prefetch may already be listing the
+                // same folder : share its request.
+                String flightKey = getChildrenFlightKey(accountName, cacheKey);
+                Callable<Void> listing = new Callable<Void>()
                 {
-                    nodes = session.getServiceRegistry().getDocumentFolderService()
-                            .getChildren(session.getRootFolder());
-                }
-                else
+                    @Override
+                    public Void call()
+                    {
+                        Log.d(TAG, "Parent ID : " + parentFolderId);
+                        AlfrescoSession session = obtainSession(account);
+
+                        // A complete listing is still valid if the change log
+                        // contains nothing we haven't already applied.
+                        ChildrenCache.CacheEntry cachedEntry = childrenCache.get(cacheKey);
+                        if (cachedEntry != null && cachedEntry.isComplete()
+                                && changeLogSynchronizer.synchronize(account, session))
+                        {
+                            // Changes may have invalidated the listing (i.e
+                            // new child inside a sorted listing).
+                            cachedEntry = childrenCache.get(cacheKey);
+                            if (cachedEntry != null && cachedEntry.isComplete())
+                            {
+                                childrenCache.refresh(cacheKey);
+                                folderPrefetcher.schedule(accountName, session, cachedEntry.getChildren(), sortOrder);
+                                return null;
+                            }
+                        }
+
+                        Folder folder = null;
+                        if (siteId != null)
+                        {
+                            folder = getDocumentLibrary(session, accountName, siteId);
+                        }
+                        else if (parentFolderId == null)
+                        {
+                            folder = session.getRootFolder();
+                        }
+                        else
+                        {
+                            folder = (Folder) getNode(accountName, session, parentFolderId);
+                            pathIndex.put(DocumentId.node(accountName, folder.getIdentifier()).getId(),
+                                    NodeSummary.create(folder));
+                        }
+
+                        // Retrieve children page by page.
+                        // Each page is published as soon as it's available unless
+                        // we are revalidating a listing already displayed.
+                        boolean revalidate = (cachedEntry != null && cachedEntry.isComplete())
+                                || storageDatabase.hasChildren(cacheKey);
+                        List<NodeSummary> children = new ArrayList<NodeSummary>();
+                        ListingContext listingContext = createListingContext(sortOrder, pageSize);
+                        PagingResult<Node> page = null;
+                        do
+                        {
+                            page = getChildrenPage(session, folder, listingContext, sortOrder);
+                            children.addAll(indexNodes(accountName, page.getList()));
+                            listingContext.setSkipCount(listingContext.getSkipCount() + page.getList().size());
+
+                            if (hasMoreItems(page) && !revalidate)
+                            {
+                                childrenCache.put(cacheKey, children, false);
+                                publishProgress();
+                            }
+                        }
+                        while (hasMoreItems(page) && !isCancelled());
+
+                        if (!isCancelled())
+                        {
+                            childrenCache.put(cacheKey, children, true);
+                            storeChildren(accountName, cacheKey, children);
+                            folderPrefetcher.schedule(accountName, session, children, sortOrder);
+                        }
+
+                        return null;
+                    }
+                };
+                singleFlight.execute(flightKey, listing);
+
+                // A prefetch only retrieves the first page : complete it.
+                ChildrenCache.CacheEntry listedEntry = childrenCache.get(cacheKey);
+                if (!isCancelled() && (listedEntry == null || !listedEntry.isComplete()))
                 {
-                    currentFolder = (Folder) session.getServiceRegistry().getDocumentFolderService()
-                            .getNodeByIdentifier(parentFolderId);
-                    pathIndex.put(currentFolder.getIdentifier(), currentFolder);
-                    nodes = session.getServiceRegistry().getDocumentFolderService().getChildren(currentFolder);
+                    singleFlight.execute(flightKey, listing);
                 }
+            }
+        }.submit();
+    }
+
+    /**
+     * Speculative retrieval of the first page of a subfolder. Listings already
+     * available (memory or persistent cache) are not requested.
+     *
+     * @return the number of children retrieved or -1 if no request was sent.
+     */
+    private int prefetchChildren(final String accountName, final AlfrescoSession session, final String folderId,
+            final ListingSortOrder sortOrder, final int maxItems)
+    {
+        final String cacheKey = ChildrenCache.getNodeKey(accountName, folderId, sortOrder);
+        ChildrenCache.CacheEntry cachedEntry = childrenCache.get(cacheKey);
+        if ((cachedEntry != null && !childrenCache.isStale(cachedEntry))
+                || storageDatabase.hasChildren(cacheKey)) { return -1; }
 
-                for (Node node : nodes)
+        // Already listed by the user.
+        String flightKey = getChildrenFlightKey(accountName, cacheKey);
+        if (singleFlight.isInFlight(flightKey)) { return -1; }
+
+        singleFlight.execute(flightKey, new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                // The folder itself isn't needed when CMIS is available.
+                ListingContext listingContext = createListingContext(sortOrder, Math.min(pageSize, maxItems));
+                PagingResult<Node> page = (session instanceof AbstractAlfrescoSessionImpl) ? getCmisChildrenPage(
+                        session, folderId, listingContext, sortOrder) : getChildrenPage(session,
+                        (Folder) getNode(accountName, session, folderId), listingContext, sortOrder);
+                boolean complete = !hasMoreItems(page);
+                List<NodeSummary> children = indexNodes(accountName, page.getList());
+                childrenCache.put(cacheKey, children, complete);
+                if (complete)
                 {
-                    nodesIndex.put(node.getIdentifier(), node);
+                    storeChildren(accountName, cacheKey, children);
                 }
-
                 return null;
             }
-        }.execute();
+        });
+
+        ChildrenCache.CacheEntry prefetchedEntry = childrenCache.get(cacheKey);
+        return (prefetchedEntry != null) ? prefetchedEntry.getChildren().size() : 0;
     }
 
-    private void fillNodeChildren(Uri uri, Boolean active, ChildrenCursor childrenCursor)
+    /**
+     * @return the key of the listing request : the user and the prefetch
+     *         share it.
+     */
+    private static String getChildrenFlightKey(String accountName, String cacheKey)
     {
-        if (hasError(uri, active, childrenCursor)) { return; }
-        if (!hasSession(uri, childrenCursor)) { return; }
+        return "children:" + accountName + SEPARATOR + cacheKey;
+    }
 
-        for (Entry<String, Node> nodeEntry : nodesIndex.entrySet())
+    /**
+     * Concurrent requests of the same node share the same request.
+     */
+    private Node getNode(String accountName, final AlfrescoSession session, final String identifier)
+    {
+        return singleFlight.execute("node:" + accountName + SEPARATOR + identifier, new Callable<Node>()
+        {
+            @Override
+            public Node call()
+            {
+                return session.getServiceRegistry().getDocumentFolderService().getNodeByIdentifier(identifier);
+            }
+        });
+    }
+
+    /**
+     * Download the content into the file. Concurrent downloads of the same
+     * content share the same request : the signal of a caller only cancels
+     * its own wait, the download is cancelled once all callers have left.
+     * <p/>
+     * The content is written to a partial file, moved to the file once its
+     * length matches the expected length. A cancelled or failed download
+     * records its state : if the node hasn't changed, the next attempt
+     * completes the partial file with a range request.
+     *
+     * @param rangeSource : Source of the content ranges, null if the download
+     *            can't be resumed.
+     * @param priority : Priority class of the download.
+     * @return false if there's no content, the download is incomplete or the
+     *         caller has cancelled.
+     */
+    private boolean downloadContent(String key, final NodeSummary node, final Callable<ContentStream> source,
+            final SparseContentCache.RangeSource rangeSource, final File file, int priority,
+            CancellationSignal signal)
+    {
+        try
+        {
+            return singleFlight.execute(key, new SingleFlight.CancellableCallable<Boolean>()
+            {
+                @Override
+                public Boolean call(CancellationSignal downloadSignal) throws Exception
+                {
+                    File partFile = new File(file.getPath() + StorageUtils.PARTIAL_FILE_EXTENSION);
+                    DownloadState state = storageDatabase.getDownloadState(file.getPath());
+                    long offset = 0;
+                    long expectedLength;
+                    InputStream is;
+                    if (rangeSource != null && state != null && partFile.exists()
+                            && state.canResume(node.getChangeToken(), node.getSize()))
+                    {
+                        // Bytes after the recorded length may be incomplete.
+                        // Range ignored by the server : the whole content is
+                        // downloaded again.
+                        SparseContentCache.Range range = rangeSource.open(Math.min(state.getBytesWritten(),
+                                partFile.length()));
+                        offset = range.getOffset();
+                        StorageUtils.truncateFile(partFile, offset);
+                        expectedLength = state.getExpectedLength();
+                        is = range.getStream();
+                        Log.d(TAG, "Resume download : " + node.getName() + " at " + offset + "/" + expectedLength);
+                    }
+                    else
+                    {
+                        ContentStream contentStream = source.call();
+
+                        // Check Stream
+                        if (contentStream == null || contentStream.getLength() == 0) { return false; }
+
+                        expectedLength = contentStream.getLength();
+                        partFile.delete();
+                        is = contentStream.getInputStream();
+                    }
+
+                    // Copy the content locally.
+                    boolean copied = false;
+                    boolean complete = false;
+                    try
+                    {
+                        copied = (offset > 0) ? StorageUtils.appendFile(is, expectedLength - offset, partFile,
+                                downloadSignal) : StorageUtils.copyFile(is, expectedLength, partFile, downloadSignal);
+                    }
+                    finally
+                    {
+                        long bytesWritten = partFile.length();
+                        complete = (expectedLength >= 0) ? bytesWritten == expectedLength : copied;
+                        if (complete && partFile.renameTo(file))
+                        {
+                            storageDatabase.deleteDownloadState(file.getPath());
+                        }
+                        else
+                        {
+                            complete = false;
+                            storageDatabase.putDownloadState(file.getPath(), new DownloadState(expectedLength,
+                                    bytesWritten, node.getChangeToken()));
+                        }
+                    }
+                    return complete;
+                }
+            }, taskExecutor.getExecutor(priority), signal);
+        }
+        catch (CancellationException e)
         {
-            addNodeRow(childrenCursor, nodeEntry.getValue());
+            return false;
         }
-        removeUri(uri, active);
     }
 
-    private void addNodeRow(ChildrenCursor result, Node node)
+    /**
+     * @return the source of the content ranges of a document i.e CMIS
+     *         requests with a range.
+     */
+    private static SparseContentCache.RangeSource createRangeSource(final AlfrescoSession session,
+            final String identifier)
     {
-        addNodeRow(result, node, false);
+        return new SparseContentCache.RangeSource()
+        {
+            @Override
+            public SparseContentCache.Range open(long offset) throws IOException
+            {
+                org.apache.chemistry.opencmis.client.api.Session cmisSession = ((AbstractAlfrescoSessionImpl) session)
+                        .getCmisSession();
+                org.apache.chemistry.opencmis.commons.data.ContentStream contentStream = cmisSession
+                        .getContentStream(cmisSession.createObjectId(identifier), null, BigInteger.valueOf(offset),
+                                null);
+                if (contentStream == null) { throw new IOException("No content : " + identifier); }
+
+                // Range ignored by the server : the whole content is sent,
+                // the caller decides what to do with the beginning.
+                boolean ranged = offset == 0 || contentStream instanceof PartialContentStream;
+                return new SparseContentCache.Range(contentStream.getStream(), ranged ? offset : 0);
+            }
+        };
     }
 
-    private void addNodeRow(ChildrenCursor result, Node node, boolean isRoot)
+    /**
+     * @return the key of a content of the account : a new version or
+     *         modification is a new content, as for the cache file.
+     */
+    private static String getContentKey(String type, String accountName, NodeSummary node)
     {
-        int flags = 0;
+        return type + ":" + accountName + SEPARATOR + node.getIdentifier() + "@" + node.getChangeToken();
+    }
+
+    private static ListingContext createListingContext(ListingSortOrder sortOrder, int maxItems)
+    {
+        ListingContext listingContext = new ListingContext();
+        listingContext.setMaxItems(maxItems);
+        if (sortOrder != null && sortOrder.getSortProperty() != null)
+        {
+            listingContext.setSortProperty(sortOrder.getSortProperty());
+            listingContext.setIsSortAscending(sortOrder.isAscending());
+        }
+        return listingContext;
+    }
 
-        Permissions permission = session.getServiceRegistry().getDocumentFolderService().getPermissions(node);
+    /**
+     * Retrieve one page of children, ordered by the server.
+     */
+    private PagingResult<Node> getChildrenPage(AlfrescoSession session, Folder folder,
+            ListingContext listingContext, ListingSortOrder sortOrder)
+    {
+        if (sortOrder == null || sortOrder.getSortProperty() != null
+                || !(session instanceof AbstractAlfrescoSessionImpl)) { return session.getServiceRegistry()
+                .getDocumentFolderService().getChildren(folder, listingContext); }
 
-        ChildrenCursor.RowBuilder row = result.newRow();
+        // This order is not supported by the SDK : ask CMIS directly
+        return getCmisChildrenPage(session, folder.getIdentifier(), listingContext, sortOrder);
+    }
 
-        row.add(Document.COLUMN_DOCUMENT_ID, node.getIdentifier());
-        row.add(Document.COLUMN_DISPLAY_NAME,
-                isRoot ? getContext().getString(R.string.menu_browse_root) : node.getName());
-        if (node.isFolder())
+    /**
+     * Retrieve one page of children with CMIS, ordered by the server. Only the
+     * folder identifier is needed.
+     */
+    private static PagingResult<Node> getCmisChildrenPage(AlfrescoSession session, String folderId,
+            ListingContext listingContext, ListingSortOrder sortOrder)
+    {
+        org.apache.chemistry.opencmis.client.api.Session cmisSession = ((AbstractAlfrescoSessionImpl) session)
+                .getCmisSession();
+        OperationContext operationContext = cmisSession.createOperationContext();
+        operationContext.setIncludeAllowableActions(true);
+
+        ObjectInFolderList children = cmisSession
+                .getBinding()
+                .getNavigationService()
+                .getChildren(cmisSession.getRepositoryInfo().getId(), folderId, operationContext.getFilterString(),
+                        (sortOrder != null) ? sortOrder.getOrderBy() : null, true, IncludeRelationships.NONE,
+                        "cmis:none", false, BigInteger.valueOf(listingContext.getMaxItems()),
+                        BigInteger.valueOf(listingContext.getSkipCount()), null);
+
+        List<Node> nodes = new ArrayList<Node>(listingContext.getMaxItems());
+        for (ObjectInFolderData childData : children.getObjects())
         {
-            row.add(Document.COLUMN_SIZE, null);
-            row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
-            if (permission.canAddChildren())
+            CmisObject child = cmisSession.getObjectFactory().convertObject(childData.getObject(), operationContext);
+            if (child instanceof org.apache.chemistry.opencmis.client.api.Document)
             {
-                flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
+                nodes.add(new DocumentImpl(child));
+            }
+            else if (child instanceof org.apache.chemistry.opencmis.client.api.Folder)
+            {
+                nodes.add(new FolderImpl(child));
             }
         }
-        else
+        return new PagingResultImpl<Node>(nodes, Boolean.TRUE.equals(children.hasMoreItems()),
+                (children.getNumItems() != null) ? children.getNumItems().intValue() : -1);
+    }
+
+    /**
+     * Summarize the nodes and index them : the SDK nodes are not kept.
+     */
+    private List<NodeSummary> indexNodes(String accountName, List<? extends Node> nodes)
+    {
+        List<NodeSummary> summaries = new ArrayList<NodeSummary>(nodes.size());
+        for (Node node : nodes)
         {
-            row.add(Document.COLUMN_SIZE,
-                    ((org.alfresco.mobile.android.api.model.Document) node).getContentStreamLength());
-            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
-            row.add(Document.COLUMN_MIME_TYPE,
-                    ((org.alfresco.mobile.android.api.model.Document) node).getContentStreamMimeType());
-            if (permission.canEdit())
+            NodeSummary summary = NodeSummary.create(node);
+            nodesIndex.put(DocumentId.node(accountName, summary.getIdentifier()).getId(), summary);
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    /**
+     * Write through the persistent metadata cache.
+     */
+    private void storeChildren(String accountName, String cacheKey, List<NodeSummary> children)
+    {
+        storageDatabase.replaceChildren(accountName, cacheKey, children);
+    }
+
+    /**
+     * Fill the cursor with the cached listing if available.
+     * 
+     * @return true if the listing must be retrieved or revalidated from the
+     *         server.
+     */
+    private boolean fillCachedChildren(Uri uri, Account account, String cacheKey, ChildrenCursor childrenCursor)
+    {
+        Boolean active = mLoadingUris.get(uri);
+        ChildrenCache.CacheEntry cachedEntry = childrenCache.get(cacheKey);
+
+        if (cachedEntry == null && hasError(uri, active, childrenCursor)) { return false; }
+
+        if (cachedEntry == null)
+        {
+            // Not in memory (i.e cold start or failed request) : display the
+            // last known listing from the persistent cache while the server
+            // is requested.
+            for (NodeSummary storedNode : storageDatabase.getChildren(cacheKey))
             {
-                flags |= Document.FLAG_SUPPORTS_WRITE;
+                addNodeRow(childrenCursor, storedNode);
             }
+            if (active != null)
+            {
+                fillNodeChildren(uri, account, active, null, childrenCursor);
+            }
+            return active == null;
+        }
 
-            if (permission.canDelete())
+        fillNodeChildren(uri, account, active, cachedEntry, childrenCursor);
+
+        // Stale while revalidate : cached rows are displayed and refreshed in
+        // background.
+        return active == null && cachedEntry != null
+                && (!cachedEntry.isComplete() || childrenCache.isStale(cachedEntry));
+    }
+
+    private void fillNodeChildren(Uri uri, Account account, Boolean active, ChildrenCache.CacheEntry cachedEntry,
+            ChildrenCursor childrenCursor)
+    {
+        if (hasError(uri, active, childrenCursor)) { return; }
+        if (!hasSession(uri, account, childrenCursor)) { return; }
+
+        if (cachedEntry != null)
+        {
+            for (NodeSummary node : cachedEntry.getChildren())
             {
-                flags |= Document.FLAG_SUPPORTS_DELETE;
+                addNodeRow(childrenCursor, node);
             }
         }
 
-        row.add(Document.COLUMN_LAST_MODIFIED, isRoot ? null : node.getModifiedAt().getTimeInMillis());
-        row.add(Document.COLUMN_FLAGS, flags);
+        if (active != null && active)
+        {
+            // Listing is still loading : keep the client listening
+            childrenCursor.setIsLoading(true);
+            childrenCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+        removeUri(uri, active);
     }
 
-    // //////////////////////////////////////////////////////////////////////
-    // ROOT MENU
-    // //////////////////////////////////////////////////////////////////////
-    private static String encodeItem(int prefix, String value)
+    private static boolean hasMoreItems(PagingResult<?> page)
     {
-        return Integer.toString(prefix).concat(SEPARATOR).concat(value);
+        return page.hasMoreItems() != null && page.hasMoreItems() && !page.getList().isEmpty();
+    }
+
+    /**
+     * Only columns requested by the projection are computed.
+     */
+    private void addNodeRow(ChildrenCursor result, Node node, boolean isRoot)
+    {
+        ChildrenCursor.RowBuilder row = result.newRow();
+
+        if (result.hasColumn(Document.COLUMN_DOCUMENT_ID))
+        {
+            row.add(Document.COLUMN_DOCUMENT_ID, DocumentId.node(result.getAccountName(), node.getIdentifier())
+                    .getId());
+        }
+        if (result.hasColumn(Document.COLUMN_DISPLAY_NAME))
+        {
+            row.add(Document.COLUMN_DISPLAY_NAME,
+                    isRoot ? getContext().getString(R.string.menu_browse_root) : node.getName());
+        }
+        if (result.hasColumn(Document.COLUMN_SIZE))
+        {
+            row.add(Document.COLUMN_SIZE, node.isFolder() ? null
+                    : ((org.alfresco.mobile.android.api.model.Document) node).getContentStreamLength());
+        }
+        if (result.hasColumn(Document.COLUMN_MIME_TYPE))
+        {
+            row.add(Document.COLUMN_MIME_TYPE, node.isFolder() ? Document.MIME_TYPE_DIR
+                    : ((org.alfresco.mobile.android.api.model.Document) node).getContentStreamMimeType());
+        }
+        if (result.hasColumn(Document.COLUMN_LAST_MODIFIED))
+        {
+            row.add(Document.COLUMN_LAST_MODIFIED, isRoot ? null : node.getModifiedAt().getTimeInMillis());
+        }
+        if (result.hasColumn(Document.COLUMN_FLAGS))
+        {
+            row.add(Document.COLUMN_FLAGS, NodeSummary.computeFlags(node));
+        }
+    }
+
+    private void addNodeRow(ChildrenCursor result, NodeSummary node)
+    {
+        ChildrenCursor.RowBuilder row = result.newRow();
+
+        if (result.hasColumn(Document.COLUMN_DOCUMENT_ID))
+        {
+            row.add(Document.COLUMN_DOCUMENT_ID, DocumentId.node(result.getAccountName(), node.getIdentifier())
+                    .getId());
+        }
+        if (result.hasColumn(Document.COLUMN_DISPLAY_NAME))
+        {
+            row.add(Document.COLUMN_DISPLAY_NAME, node.getName());
+        }
+        if (result.hasColumn(Document.COLUMN_SIZE))
+        {
+            row.add(Document.COLUMN_SIZE, node.isFolder() ? null : node.getSize());
+        }
+        if (result.hasColumn(Document.COLUMN_MIME_TYPE))
+        {
+            row.add(Document.COLUMN_MIME_TYPE, node.getMimeType());
+        }
+        if (result.hasColumn(Document.COLUMN_LAST_MODIFIED))
+        {
+            row.add(Document.COLUMN_LAST_MODIFIED, node.getLastModified());
+        }
+        if (result.hasColumn(Document.COLUMN_FLAGS))
+        {
+            row.add(Document.COLUMN_FLAGS, node.getFlags());
+        }
     }
 
     // //////////////////////////////////////////////////////////////////////
     // FILE DESCRIPTOR
     // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the cache file of the node content : named after the node
+     *         identifier & change token.
+     */
+    private File getContentFile(Account account, String environmentFolder, NodeSummary node)
+    {
+        return StorageUtils.getStorageFolder(getContext(), environmentFolder, getAccountUrl(account), account.name,
+                StorageUtils.getContentFileName(node.getIdentifier(), node.getChangeToken()));
+    }
+
+    /**
+     * Index the cache file about to be downloaded with the node name. Files
+     * of the previous versions are deleted once closed.
+     */
+    private void putContentFile(Account account, String environmentFolder, NodeSummary node, File file)
+    {
+        cacheManager.putContent(file, account.name, environmentFolder,
+                ChildrenCache.getCleanIdentifier(node.getIdentifier()), node.getChangeToken(), node.getName());
+    }
+
 
-    private ParcelFileDescriptor createFileDescriptor(boolean isWrite, File file, int accessMode)
+    /**
+     * The file is pinned in the cache until the client closes the descriptor.
+     */
+    private ParcelFileDescriptor createFileDescriptor(final boolean isWrite, final File file, int accessMode)
             throws FileNotFoundException
     {
-        if (isWrite)
+        cacheManager.recordAccess(file);
+        cacheManager.pin(file.getPath());
+        try
         {
-            // Attach a close listener if the document is opened in write mode.
-            try
+            Handler handler = new Handler(getContext().getMainLooper());
+            return ParcelFileDescriptor.open(file, accessMode, handler, new ParcelFileDescriptor.OnCloseListener()
             {
-                Handler handler = new Handler(getContext().getMainLooper());
-                return ParcelFileDescriptor.open(file, accessMode, handler, new ParcelFileDescriptor.OnCloseListener()
+                @Override
+                public void onClose(IOException e)
                 {
-                    @Override
-                    public void onClose(IOException e)
+                    cacheManager.unpin(file.getPath());
+                    if (isWrite)
                     {
                         // TODO !
                     }
+                }
 
-                });
-            }
-            catch (IOException e)
-            {
-                throw new FileNotFoundException("Failed to open document");
-            }
+            });
         }
-        else
+        catch (IOException e)
         {
-            return ParcelFileDescriptor.open(file, accessMode);
+            cacheManager.unpin(file.getPath());
+            throw new FileNotFoundException("Failed to open document");
         }
     }
 
@@ -1107,11 +2025,11 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
 
     private boolean hasError(Uri uri, Boolean active, ChildrenCursor cursor)
     {
-        if (exception != null)
+        RuntimeException error = mLoadingErrors.remove(uri);
+        if (error != null)
         {
-            cursor.setErrorInformation("Error : " + exception.getMessage());
+            cursor.setErrorInformation("Error : " + error.getMessage());
             removeUri(uri, active);
-            exception = null;
             return true;
         }
         return false;
@@ -1127,12 +2045,17 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         {
             Log.d(TAG, "OAUTH Result");
             Bundle bundle = result.getResult();
-            oauthdata = new OAuth2DataImpl(bundle.getString(AccountAuthenticator.PARAM_APIKEY, ""), bundle.getString(
-                    AccountAuthenticator.PARAM_APISECRET, ""), bundle.getString(AccountAuthenticator.PARAM_TOKEN, ""),
-                    bundle.getString(AccountAuthenticator.PARAM_REFRESH_TOKEN, ""));
+            OAuthData oauthData = new OAuth2DataImpl(bundle.getString(AccountAuthenticator.PARAM_APIKEY, ""),
+                    bundle.getString(AccountAuthenticator.PARAM_APISECRET, ""), bundle.getString(
+                            AccountAuthenticator.PARAM_TOKEN, ""), bundle.getString(
+                            AccountAuthenticator.PARAM_REFRESH_TOKEN, ""));
+            oauthDataIndex.put(bundle.getString(PARAM_DOCUMENT_ID, ""), oauthData);
+
+            // The root menu is requested again : the session is now connected
+            // with the token.
             Uri uri = Uri.parse(bundle.getString(PARAM_URI, ""));
-            retrieveRootMenuChildren(uri, bundle.getString(PARAM_DOCUMENT_ID, ""), tempCursor);
             mLoadingUris.remove(uri);
+            getContext().getContentResolver().notifyChange(uri, null);
         }
         catch (Exception e)
         {
@@ -1140,6 +2063,21 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
         }
     }
 
+    /**
+     * Refreshed tokens are used by the connected session and the next
+     * connections. Background refreshes stop once the session is evicted.
+     */
+    private void updateOAuthData(Account account, OAuthData oauthData)
+    {
+        oauthDataIndex.put(account.name, oauthData);
+        AlfrescoSession alfrescoSession = sessionPool.peek(account.name);
+        if (alfrescoSession instanceof CloudSession)
+        {
+            ((CloudSession) alfrescoSession).setOAuthData(oauthData);
+            tokenRefresher.schedule(account);
+        }
+    }
+
     // //////////////////////////////////////////////////////////////////////
     // Base AsyncTask
     // //////////////////////////////////////////////////////////////////////
@@ -1149,39 +2087,91 @@ public class AlfrescoStorageAccessProvider extends DocumentsProvider implements
 
         protected ChildrenCursor childrenCursor;
 
-        private boolean clearNodes = false;
+        /** Rows already displayed from cache : the listing is revalidated. */
+        private final boolean revalidating;
 
         public StorageProviderAsyncTask(Uri uri, ChildrenCursor childrenCursor)
         {
             this.uri = uri;
             this.childrenCursor = childrenCursor;
+            this.revalidating = childrenCursor.getCount() > 0;
         }
 
-        public StorageProviderAsyncTask(Uri uri, ChildrenCursor childrenCursor, boolean clearNodes)
+        /**
+         * Queue the task. A listing already displayed from cache is only a
+         * refresh : it gives way to the listings the user is waiting for.
+         */
+        public void submit()
         {
-            this.uri = uri;
-            this.childrenCursor = childrenCursor;
-            this.clearNodes = clearNodes;
+            int priority = revalidating ? PriorityTaskExecutor.PRIORITY_REFRESH
+                    : PriorityTaskExecutor.PRIORITY_INTERACTIVE;
+            executeOnExecutor(taskExecutor.getExecutor(priority));
         }
 
+        /**
+         * Retrieve the listing from the server, in background.
+         *
+         * @throws AlfrescoException if the session or the request fails.
+         * @throws CmisBaseException if a CMIS request fails.
+         */
+        protected abstract void retrieve();
+
         @Override
-        protected void onPreExecute()
+        protected final Void doInBackground(Void... params)
         {
-            if (clearNodes && nodesIndex != null)
+            try
             {
-                nodesIndex.clear();
+                retrieve();
             }
+            catch (AlfrescoException e)
+            {
+                onError(e);
+            }
+            catch (CmisBaseException e)
+            {
+                onError(e);
+            }
+            return null;
+        }
+
+        /**
+         * The error is reported by the next query of the uri. A failed
+         * revalidation keeps the cached rows displayed (i.e offline).
+         */
+        private void onError(RuntimeException e)
+        {
+            Log.w(TAG, Log.getStackTraceString(e));
+            Uri loadingUri = uri;
+            if (!revalidating && loadingUri != null)
+            {
+                mLoadingErrors.put(loadingUri, e);
+            }
+        }
+
+        @Override
+        protected void onPreExecute()
+        {
+            folderPrefetcher.foregroundStarted();
             startLoadingUri(uri, childrenCursor);
         }
 
+        @Override
+        protected void onProgressUpdate(Void... values)
+        {
+            // A new page is available
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
         protected void onPostExecute(Void noResult)
         {
+            folderPrefetcher.foregroundFinished();
             stopLoadingUri(uri);
         }
 
         @Override
         protected void onCancelled()
         {
+            folderPrefetcher.foregroundFinished();
             uri = null;
             childrenCursor = null;
         }
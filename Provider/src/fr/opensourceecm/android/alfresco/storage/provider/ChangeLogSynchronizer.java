@@ -0,0 +1,579 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.alfresco.mobile.android.api.model.Node;
+import org.alfresco.mobile.android.api.model.impl.DocumentImpl;
+import org.alfresco.mobile.android.api.model.impl.FolderImpl;
+import org.alfresco.mobile.android.api.session.AlfrescoSession;
+import org.alfresco.mobile.android.api.session.impl.AbstractAlfrescoSessionImpl;
+import org.apache.chemistry.opencmis.client.api.ChangeEvent;
+import org.apache.chemistry.opencmis.client.api.ChangeEvents;
+import org.apache.chemistry.opencmis.client.api.CmisObject;
+import org.apache.chemistry.opencmis.client.api.OperationContext;
+import org.apache.chemistry.opencmis.client.api.Session;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectParentData;
+import org.apache.chemistry.opencmis.commons.data.RepositoryCapabilities;
+import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
+import org.apache.chemistry.opencmis.commons.enums.CapabilityChanges;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisConnectionException;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.util.LruCache;
+import fr.opensourceecm.android.alfresco.account.AccountConstants;
+import fr.opensourceecm.android.alfresco.storage.NodeSummary;
+import fr.opensourceecm.android.alfresco.storage.StorageDatabaseHelper;
+
+/**
+ * Keep cached listings up to date with the CMIS change log.
+ * <p/>
+ * A change log token is stored per account. Each synchronization retrieves
+ * only the events (created, updated, deleted) since this token and patches
+ * the memory & persistent caches. Only the listings affected by a change are
+ * notified.
+ * <p/>
+ * Nodes are only requested for the listings in cache : one query per page of
+ * events. A token rejected by the server, or not synchronized for longer than
+ * its lifetime, is dropped : relisting is cheaper than replaying the change
+ * log.
+ *
+ * @author Jean Marie Pascal
+ */
+public class ChangeLogSynchronizer
+{
+    private static final String TAG = ChangeLogSynchronizer.class.getSimpleName();
+
+    /** Number of events retrieved per request. */
+    private static final int MAX_EVENTS = 100;
+
+    /** Minimum delay (in ms) between two requests of the change log. */
+    private static final long MIN_SYNC_INTERVAL = 10000;
+
+    /** Filter of the requests which only need object identifiers. */
+    private static final String FILTER_NONE = "cmis:none";
+
+    private final Context context;
+
+    private final String authority;
+
+    private final AccountManager accountManager;
+
+    private final StorageDatabaseHelper storageDatabase;
+
+    private final ChildrenCache childrenCache;
+
+    private final LruCache<String, NodeSummary> nodesIndex;
+
+    private final ContentCacheManager cacheManager;
+
+    /** Duration (in ms) after the last synchronization when the token is dropped. */
+    private final long tokenLifetime;
+
+    private final ConcurrentMap<String, Long> lastSyncTimes = new ConcurrentHashMap<String, Long>();
+
+    /** Accounts are synchronized independently. */
+    private final ConcurrentMap<String, Object> accountLocks = new ConcurrentHashMap<String, Object>();
+
+    // //////////////////////////////////////////////////////////////////////
+    // CONSTRUCTORS
+    // //////////////////////////////////////////////////////////////////////
+    public ChangeLogSynchronizer(Context context, String authority, StorageDatabaseHelper storageDatabase,
+            ChildrenCache childrenCache, LruCache<String, NodeSummary> nodesIndex,
+            ContentCacheManager cacheManager, long tokenLifetime)
+    {
+        this.context = context;
+        this.authority = authority;
+        this.accountManager = AccountManager.get(context);
+        this.storageDatabase = storageDatabase;
+        this.childrenCache = childrenCache;
+        this.nodesIndex = nodesIndex;
+        this.cacheManager = cacheManager;
+        this.tokenLifetime = tokenLifetime;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return true if the repository exposes its change log.
+     */
+    public static boolean isSupported(AlfrescoSession session)
+    {
+        if (!(session instanceof AbstractAlfrescoSessionImpl)) { return false; }
+        RepositoryCapabilities capabilities = ((AbstractAlfrescoSessionImpl) session).getCmisSession()
+                .getRepositoryInfo().getCapabilities();
+        return capabilities != null && capabilities.getChangesCapability() != null
+                && capabilities.getChangesCapability() != CapabilityChanges.NONE;
+    }
+
+    /**
+     * Store the starting point of the change log for this account. Must be
+     * called just after the session creation i.e before any listing. A token
+     * older than its lifetime is replaced : the listings of the account are
+     * retrieved again.
+     */
+    public void initToken(Account account, AlfrescoSession session)
+    {
+        if (account == null || !isSupported(session)) { return; }
+        synchronized (getLock(account.name))
+        {
+            if (accountManager.getUserData(account, AccountConstants.ACCOUNT_CHANGE_LOG_TOKEN) != null)
+            {
+                if (!isOutdated(account)) { return; }
+                childrenCache.invalidateAccount(account.name);
+            }
+            storeToken(account, ((AbstractAlfrescoSessionImpl) session).getCmisSession().getRepositoryInfo()
+                    .getLatestChangeLogToken());
+        }
+    }
+
+    /**
+     * Apply all changes since the last synchronization to the caches.
+     *
+     * @return true if the caches are up to date. false if the change log is
+     *         unavailable : cached listings must be retrieved again.
+     */
+    public boolean synchronize(Account account, AlfrescoSession session)
+    {
+        if (account == null || !isSupported(session)) { return false; }
+
+        synchronized (getLock(account.name))
+        {
+            String token = accountManager.getUserData(account, AccountConstants.ACCOUNT_CHANGE_LOG_TOKEN);
+            if (token == null) { return false; }
+
+            Long lastSyncTime = lastSyncTimes.get(account.name);
+            if (lastSyncTime != null
+                    && SystemClock.elapsedRealtime() - lastSyncTime < MIN_SYNC_INTERVAL) { return true; }
+
+            Session cmisSession = ((AbstractAlfrescoSessionImpl) session).getCmisSession();
+            if (isOutdated(account))
+            {
+                // Too many changes may have happened since.
+                resetToken(account, cmisSession);
+                return false;
+            }
+
+            Set<String> parentIds = new HashSet<String>();
+            try
+            {
+                ChangeEvents changeEvents = null;
+                String previousToken = null;
+                do
+                {
+                    changeEvents = cmisSession.getContentChanges(token, true, MAX_EVENTS);
+                    applyChanges(account, cmisSession, changeEvents.getChangeEvents(), parentIds);
+                    previousToken = token;
+                    if (changeEvents.getLatestChangeLogToken() != null)
+                    {
+                        token = changeEvents.getLatestChangeLogToken();
+                    }
+                }
+                while (changeEvents.getHasMoreItems() && !token.equals(previousToken));
+            }
+            catch (CmisConnectionException e)
+            {
+                // Server unreachable : the token is still valid.
+                Log.w(TAG, Log.getStackTraceString(e));
+                return false;
+            }
+            catch (Exception e)
+            {
+                // Token unknown or change log purged : changes may have been
+                // missed. Restart from the current state of the repository.
+                Log.w(TAG, Log.getStackTraceString(e));
+                resetToken(account, cmisSession);
+                return false;
+            }
+
+            storeToken(account, token);
+            lastSyncTimes.put(account.name, SystemClock.elapsedRealtime());
+
+            // Only affected listings are notified
+            for (String parentId : parentIds)
+            {
+                String documentId = ChildrenCache.getParentDocumentId(parentId);
+                context.getContentResolver().notifyChange(
+                        DocumentsContract.buildChildDocumentsUri(authority, documentId), null);
+            }
+
+            return true;
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // CHANGES
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Apply a page of events. Deletions are applied immediately. Created and
+     * updated nodes are only requested if a cached listing is affected, all
+     * at once.
+     *
+     * @param parentIds : Keys of the patched listings.
+     */
+    private void applyChanges(Account account, Session cmisSession, List<ChangeEvent> changeEvents,
+            Set<String> parentIds)
+    {
+        Map<String, Set<String>> cachedParents = null;
+        Set<String> updatedIds = new HashSet<String>();
+        Map<String, List<String>> createdIds = new LinkedHashMap<String, List<String>>();
+
+        for (ChangeEvent changeEvent : changeEvents)
+        {
+            String identifier = ChildrenCache.getCleanIdentifier(changeEvent.getObjectId());
+            switch (changeEvent.getChangeType())
+            {
+                case DELETED:
+                    updatedIds.remove(identifier);
+                    createdIds.remove(identifier);
+                    removeNode(account, identifier, parentIds);
+                    break;
+
+                case CREATED:
+                    // Only listings already in cache are patched
+                    if (cachedParents == null)
+                    {
+                        cachedParents = getCachedParents(account);
+                    }
+                    if (cachedParents.isEmpty()) { break; }
+                    createdIds.put(identifier, getParentId(changeEvent));
+                    break;
+
+                default:
+                    // Updated or permissions changed
+                    if (!storageDatabase.getParentIds(account.name, identifier).isEmpty()
+                            || childrenCache.containsNode(account.name, identifier))
+                    {
+                        updatedIds.add(identifier);
+                    }
+                    break;
+            }
+        }
+        if (updatedIds.isEmpty() && createdIds.isEmpty()) { return; }
+
+        // Parents unknown from the event : only their identifiers are
+        // requested.
+        Map<String, List<String>> createdParents = new HashMap<String, List<String>>(createdIds.size());
+        for (Map.Entry<String, List<String>> createdId : createdIds.entrySet())
+        {
+            List<String> folderIds = (createdId.getValue() != null) ? createdId.getValue() : getParentFolderIds(
+                    cmisSession, createdId.getKey());
+            folderIds.retainAll(cachedParents.keySet());
+            if (!folderIds.isEmpty())
+            {
+                createdParents.put(createdId.getKey(), folderIds);
+            }
+        }
+
+        Set<String> identifiers = new HashSet<String>(updatedIds);
+        identifiers.addAll(createdParents.keySet());
+        Map<String, NodeSummary> nodes = getNodes(cmisSession, identifiers);
+
+        for (String identifier : updatedIds)
+        {
+            NodeSummary node = nodes.get(identifier);
+            if (node == null)
+            {
+                // Not accessible anymore
+                removeNode(account, identifier, parentIds);
+            }
+            else
+            {
+                updateNode(account, identifier, node, parentIds);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> createdParent : createdParents.entrySet())
+        {
+            NodeSummary node = nodes.get(createdParent.getKey());
+            if (node == null) { continue; }
+            for (String folderId : createdParent.getValue())
+            {
+                for (String parentDocumentId : cachedParents.get(folderId))
+                {
+                    addNode(account, parentDocumentId, node, parentIds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the node to all listings of the parent whatever their sort order.
+     * The position of the node is unknown inside sorted listings : they are
+     * invalidated and retrieved again.
+     */
+    private void addNode(Account account, String parentDocumentId, NodeSummary node, Set<String> parentIds)
+    {
+        childrenCache.addNode(parentDocumentId, node);
+        if (storageDatabase.hasChildren(parentDocumentId))
+        {
+            storageDatabase.appendChild(account.name, parentDocumentId, node);
+        }
+        else
+        {
+            storageDatabase.deleteChildren(parentDocumentId);
+        }
+        nodesIndex.put(DocumentId.node(account.name, node.getIdentifier()).getId(), node);
+        parentIds.add(parentDocumentId);
+    }
+
+    private void updateNode(Account account, String identifier, NodeSummary node, Set<String> parentIds)
+    {
+        removeContent(account, identifier);
+        parentIds.addAll(storageDatabase.getParentIds(account.name, identifier));
+        storageDatabase.updateNode(account.name, identifier, node);
+        parentIds.addAll(childrenCache.replaceNode(account.name, node));
+        // Only nodes already indexed are updated.
+        String key = DocumentId.node(account.name, node.getIdentifier()).getId();
+        synchronized (nodesIndex)
+        {
+            if (nodesIndex.get(key) != null)
+            {
+                nodesIndex.put(key, node);
+            }
+        }
+    }
+
+    private void removeNode(Account account, String identifier, Set<String> parentIds)
+    {
+        removeContent(account, identifier);
+        parentIds.addAll(storageDatabase.getParentIds(account.name, identifier));
+        storageDatabase.deleteNode(account.name, identifier);
+        parentIds.addAll(childrenCache.removeNode(account.name, identifier));
+        nodesIndex.remove(DocumentId.node(account.name, identifier).getId());
+    }
+
+    /**
+     * Local copies of the content and the thumbnail are not valid anymore.
+     * Copies still open are deleted once closed.
+     */
+    private void removeContent(Account account, String identifier)
+    {
+        cacheManager.deleteContents(account.name, identifier);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // CACHED LISTINGS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the document ids of the cached listings (memory & persistent)
+     *         of the account by folder identifier. Site listings are matched
+     *         with their document library folder.
+     */
+    private Map<String, Set<String>> getCachedParents(Account account)
+    {
+        Set<String> keys = new HashSet<String>(childrenCache.getKeys(account.name));
+        keys.addAll(storageDatabase.getListingKeys(account.name));
+
+        Map<String, Set<String>> cachedParents = new HashMap<String, Set<String>>();
+        for (String key : keys)
+        {
+            String parentDocumentId = ChildrenCache.getParentDocumentId(key);
+            DocumentId documentId = DocumentId.decode(parentDocumentId);
+            String folderId = null;
+            if (documentId.getType() == DocumentId.TYPE_NODE)
+            {
+                folderId = documentId.getNodeIdentifier();
+            }
+            else if (documentId.getType() == DocumentId.TYPE_SITE)
+            {
+                folderId = storageDatabase.getDocumentLibraryId(account.name, documentId.getValue());
+            }
+            if (folderId == null) { continue; }
+
+            folderId = ChildrenCache.getCleanIdentifier(folderId);
+            Set<String> parentDocumentIds = cachedParents.get(folderId);
+            if (parentDocumentIds == null)
+            {
+                parentDocumentIds = new HashSet<String>();
+                cachedParents.put(folderId, parentDocumentIds);
+            }
+            parentDocumentIds.add(parentDocumentId);
+        }
+        return cachedParents;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // REQUESTS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the parent folder of the created object from the event
+     *         properties or null if not provided.
+     */
+    private static List<String> getParentId(ChangeEvent changeEvent)
+    {
+        Map<String, List<?>> properties = changeEvent.getProperties();
+        List<?> values = (properties != null) ? properties.get(PropertyIds.PARENT_ID) : null;
+        if (values == null || values.isEmpty() || values.get(0) == null) { return null; }
+
+        List<String> folderIds = new ArrayList<String>(1);
+        folderIds.add(ChildrenCache.getCleanIdentifier(values.get(0).toString()));
+        return folderIds;
+    }
+
+    /**
+     * @return the identifiers of the parent folders : no property is
+     *         requested.
+     */
+    private static List<String> getParentFolderIds(Session cmisSession, String identifier)
+    {
+        List<String> folderIds = new ArrayList<String>();
+        try
+        {
+            for (ObjectParentData parent : cmisSession.getBinding().getNavigationService()
+                    .getObjectParents(cmisSession.getRepositoryInfo().getId(), identifier, PropertyIds.OBJECT_ID,
+                            false, IncludeRelationships.NONE, FILTER_NONE, false, null))
+            {
+                folderIds.add(ChildrenCache.getCleanIdentifier(parent.getObject().getId()));
+            }
+        }
+        catch (CmisBaseException e)
+        {
+            // Node deleted in the meantime or not readable.
+            Log.d(TAG, "No parent : " + identifier);
+        }
+        return folderIds;
+    }
+
+    /**
+     * Retrieve the nodes with one query per base type.
+     *
+     * @return the nodes by identifier without version label. Nodes deleted
+     *         in the meantime or not readable are missing.
+     */
+    private static Map<String, NodeSummary> getNodes(Session cmisSession, Collection<String> identifiers)
+    {
+        Map<String, NodeSummary> nodes = new HashMap<String, NodeSummary>(identifiers.size());
+        if (identifiers.isEmpty()) { return nodes; }
+
+        StringBuilder objectIds = new StringBuilder();
+        for (String identifier : identifiers)
+        {
+            if (objectIds.length() > 0)
+            {
+                objectIds.append(", ");
+            }
+            objectIds.append('\'').append(identifier.replace("'", "\\'")).append('\'');
+        }
+
+        OperationContext operationContext = cmisSession.createOperationContext();
+        operationContext.setIncludeAllowableActions(true);
+        String repositoryId = cmisSession.getRepositoryInfo().getId();
+        for (BaseTypeId baseType : new BaseTypeId[] { BaseTypeId.CMIS_DOCUMENT, BaseTypeId.CMIS_FOLDER })
+        {
+            String statement = "SELECT * FROM " + baseType.value() + " WHERE " + PropertyIds.OBJECT_ID + " IN ("
+                    + objectIds + ")";
+            for (ObjectData objectData : cmisSession.getBinding().getDiscoveryService()
+                    .query(repositoryId, statement, false, true, IncludeRelationships.NONE, FILTER_NONE,
+                            BigInteger.valueOf(identifiers.size()), null, null).getObjects())
+            {
+                CmisObject object = cmisSession.getObjectFactory().convertObject(objectData, operationContext);
+                Node node = null;
+                if (object instanceof org.apache.chemistry.opencmis.client.api.Document)
+                {
+                    node = new DocumentImpl(object);
+                }
+                else if (object instanceof org.apache.chemistry.opencmis.client.api.Folder)
+                {
+                    node = new FolderImpl(object);
+                }
+                if (node != null)
+                {
+                    nodes.put(ChildrenCache.getCleanIdentifier(node.getIdentifier()), NodeSummary.create(node));
+                }
+            }
+        }
+        return nodes;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // TOKEN
+    // //////////////////////////////////////////////////////////////////////
+    private Object getLock(String accountName)
+    {
+        Object lock = accountLocks.get(accountName);
+        if (lock == null)
+        {
+            Object newLock = new Object();
+            lock = accountLocks.putIfAbsent(accountName, newLock);
+            if (lock == null)
+            {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * @return true if the token hasn't been synchronized for longer than its
+     *         lifetime.
+     */
+    private boolean isOutdated(Account account)
+    {
+        String tokenTime = accountManager.getUserData(account, AccountConstants.ACCOUNT_CHANGE_LOG_TIME);
+        if (tokenTime == null) { return true; }
+        long age = System.currentTimeMillis() - Long.parseLong(tokenTime);
+        return age < 0 || age > tokenLifetime;
+    }
+
+    private void storeToken(Account account, String token)
+    {
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_CHANGE_LOG_TOKEN, token);
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_CHANGE_LOG_TIME,
+                (token != null) ? String.valueOf(System.currentTimeMillis()) : null);
+    }
+
+    /**
+     * Restart from the current state of the repository : listings of the
+     * account are retrieved again.
+     */
+    private void resetToken(Account account, Session cmisSession)
+    {
+        lastSyncTimes.remove(account.name);
+        childrenCache.invalidateAccount(account.name);
+        try
+        {
+            String repositoryId = cmisSession.getRepositoryInfo().getId();
+            storeToken(account, cmisSession.getBinding().getRepositoryService().getRepositoryInfo(repositoryId, null)
+                    .getLatestChangeLogToken());
+        }
+        catch (Exception e)
+        {
+            storeToken(account, null);
+        }
+    }
+}
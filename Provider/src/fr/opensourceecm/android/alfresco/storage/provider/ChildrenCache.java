@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+import fr.opensourceecm.android.alfresco.storage.NodeSummary;
+import fr.opensourceecm.android.alfresco.storage.StorageDatabaseHelper;
+
+/**
+ * Bounded in-memory cache of listings (folder children, search results...)
+ * keyed by the parent document id. Document ids carry their account :
+ * accounts of the same server never share a listing. Listings only hold node
+ * summaries.
+ * <p/>
+ * Entries older than the time to live are still served but flagged as stale
+ * : the caller is responsible to revalidate them in background.
+ *
+ * @author Jean Marie Pascal
+ */
+public class ChildrenCache
+{
+    public static final String KEY_SEPARATOR = StorageDatabaseHelper.LISTING_KEY_SEPARATOR;
+
+    private final LruCache<String, CacheEntry> entries;
+
+    private final long timeToLive;
+
+    /**
+     * @param maxEntries : Maximum number of listings kept in memory.
+     * @param timeToLive : Duration (in ms) a listing is considered as fresh.
+     */
+    public ChildrenCache(int maxEntries, long timeToLive)
+    {
+        this.timeToLive = timeToLive;
+        this.entries = new LruCache<String, CacheEntry>(maxEntries);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the key of a listing. Each sort order has its own listing.
+     */
+    public static String getKey(String parentDocumentId, ListingSortOrder sortOrder)
+    {
+        if (sortOrder == null) { return parentDocumentId; }
+        return parentDocumentId + KEY_SEPARATOR + sortOrder.toString();
+    }
+
+    /**
+     * @return the key of the listing of a folder.
+     */
+    public static String getNodeKey(String accountName, String folderIdentifier, ListingSortOrder sortOrder)
+    {
+        return getKey(DocumentId.node(accountName, folderIdentifier).getId(), sortOrder);
+    }
+
+    /**
+     * @return the parent document id of the listing key.
+     */
+    public static String getParentDocumentId(String key)
+    {
+        return StorageDatabaseHelper.getListingParentId(key);
+    }
+
+    /**
+     * @return the account of the listing or null if unknown.
+     */
+    public static String getAccountName(String key)
+    {
+        return DocumentId.decode(getParentDocumentId(key)).getAccountName();
+    }
+
+    public CacheEntry get(String key)
+    {
+        return entries.get(key);
+    }
+
+    /**
+     * Store a snapshot of the listing.
+     *
+     * @param complete : false if other pages are still expected.
+     */
+    public void put(String key, List<NodeSummary> children, boolean complete)
+    {
+        entries.put(key, new CacheEntry(children, complete, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Flag the listing as fresh : it's known to be up to date with the
+     * server.
+     */
+    public void refresh(String key)
+    {
+        CacheEntry cacheEntry = entries.get(key);
+        if (cacheEntry != null)
+        {
+            entries.put(key, new CacheEntry(cacheEntry.children, cacheEntry.complete, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    public boolean isStale(CacheEntry entry)
+    {
+        return SystemClock.elapsedRealtime() - entry.creationTime > timeToLive;
+    }
+
+    /**
+     * @return the keys of the listings of the account.
+     */
+    public List<String> getKeys(String accountName)
+    {
+        List<String> keys = new ArrayList<String>();
+        for (String key : entries.snapshot().keySet())
+        {
+            if (isAccountKey(key, accountName))
+            {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if a listing of the account contains the node.
+     */
+    public boolean containsNode(String accountName, String nodeIdentifier)
+    {
+        String identifier = getCleanIdentifier(nodeIdentifier);
+        for (Entry<String, CacheEntry> cacheEntry : entries.snapshot().entrySet())
+        {
+            if (!isAccountKey(cacheEntry.getKey(), accountName)) { continue; }
+            for (NodeSummary node : cacheEntry.getValue().getChildren())
+            {
+                if (identifier.equals(getCleanIdentifier(node.getIdentifier()))) { return true; }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all listings (whatever their sort order) of the parent.
+     */
+    public void invalidate(String parentDocumentId)
+    {
+        for (String key : entries.snapshot().keySet())
+        {
+            if (key.equals(parentDocumentId) || key.startsWith(parentDocumentId + KEY_SEPARATOR))
+            {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove all listings of the account which contain the node.
+     */
+    public void invalidateContaining(String accountName, String nodeIdentifier)
+    {
+        for (Entry<String, CacheEntry> cacheEntry : entries.snapshot().entrySet())
+        {
+            if (!isAccountKey(cacheEntry.getKey(), accountName)) { continue; }
+            for (NodeSummary node : cacheEntry.getValue().getChildren())
+            {
+                if (node.getIdentifier().equals(nodeIdentifier))
+                {
+                    entries.remove(cacheEntry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all listings of the account.
+     */
+    public void invalidateAccount(String accountName)
+    {
+        for (String key : getKeys(accountName))
+        {
+            entries.remove(key);
+        }
+    }
+
+    public void clear()
+    {
+        entries.evictAll();
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PATCH
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Replace the node in all listings of the account which contain it.
+     *
+     * @return the keys of the patched listings.
+     */
+    public List<String> replaceNode(String accountName, NodeSummary node)
+    {
+        String identifier = getCleanIdentifier(node.getIdentifier());
+        List<String> keys = new ArrayList<String>();
+        for (Entry<String, CacheEntry> cacheEntry : entries.snapshot().entrySet())
+        {
+            if (!isAccountKey(cacheEntry.getKey(), accountName)) { continue; }
+            List<NodeSummary> children = new ArrayList<NodeSummary>(cacheEntry.getValue().getChildren());
+            boolean replaced = false;
+            for (int i = 0; i < children.size(); i++)
+            {
+                if (identifier.equals(getCleanIdentifier(children.get(i).getIdentifier())))
+                {
+                    children.set(i, node);
+                    replaced = true;
+                }
+            }
+            if (replaced)
+            {
+                patch(cacheEntry.getKey(), cacheEntry.getValue(), children);
+                keys.add(cacheEntry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Remove the node from all listings of the account which contain it.
+     *
+     * @return the keys of the patched listings.
+     */
+    public List<String> removeNode(String accountName, String nodeIdentifier)
+    {
+        String identifier = getCleanIdentifier(nodeIdentifier);
+        List<String> keys = new ArrayList<String>();
+        for (Entry<String, CacheEntry> cacheEntry : entries.snapshot().entrySet())
+        {
+            if (!isAccountKey(cacheEntry.getKey(), accountName)) { continue; }
+            List<NodeSummary> children = new ArrayList<NodeSummary>(cacheEntry.getValue().getChildren());
+            boolean removed = false;
+            for (int i = children.size() - 1; i >= 0; i--)
+            {
+                if (identifier.equals(getCleanIdentifier(children.get(i).getIdentifier())))
+                {
+                    children.remove(i);
+                    removed = true;
+                }
+            }
+            if (removed)
+            {
+                patch(cacheEntry.getKey(), cacheEntry.getValue(), children);
+                keys.add(cacheEntry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Add a new node to the listing of its parent. The position of the node
+     * is unknown inside sorted listings : they are invalidated.
+     */
+    public void addNode(String parentDocumentId, NodeSummary node)
+    {
+        CacheEntry cacheEntry = entries.get(parentDocumentId);
+        invalidate(parentDocumentId);
+        if (cacheEntry != null && cacheEntry.isComplete())
+        {
+            List<NodeSummary> children = new ArrayList<NodeSummary>(cacheEntry.getChildren());
+            children.add(node);
+            patch(parentDocumentId, cacheEntry, children);
+        }
+    }
+
+    private void patch(String key, CacheEntry cacheEntry, List<NodeSummary> children)
+    {
+        entries.put(key, new CacheEntry(children, cacheEntry.complete, cacheEntry.creationTime));
+    }
+
+    private static boolean isAccountKey(String key, String accountName)
+    {
+        return accountName.equals(getAccountName(key));
+    }
+
+    /**
+     * @return the node identifier without its version label.
+     */
+    public static String getCleanIdentifier(String identifier)
+    {
+        int index = identifier.indexOf(';');
+        return (index == -1) ? identifier : identifier.substring(0, index);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // ENTRY
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Immutable snapshot of a listing.
+     */
+    public static final class CacheEntry
+    {
+        private final List<NodeSummary> children;
+
+        private final boolean complete;
+
+        private final long creationTime;
+
+        private CacheEntry(List<NodeSummary> children, boolean complete, long creationTime)
+        {
+            this.children = Collections.unmodifiableList(new ArrayList<NodeSummary>(children));
+            this.complete = complete;
+            this.creationTime = creationTime;
+        }
+
+        public List<NodeSummary> getChildren()
+        {
+            return children;
+        }
+
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+}
@@ -15,6 +15,10 @@
  ******************************************************************************/
 package fr.opensourceecm.android.alfresco.storage.provider;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import android.database.MatrixCursor;
 import android.os.Bundle;
 import android.provider.DocumentsContract;
@@ -26,14 +30,41 @@ public class ChildrenCursor extends MatrixCursor
 {
     private Bundle extras;
 
+    private final Set<String> columns;
+
+    private String accountName;
+
     public ChildrenCursor(String[] columnNames, int initialCapacity)
     {
         super(columnNames, initialCapacity);
+        this.columns = new HashSet<String>(Arrays.asList(columnNames));
     }
 
     public ChildrenCursor(String[] columnNames)
     {
         super(columnNames);
+        this.columns = new HashSet<String>(Arrays.asList(columnNames));
+    }
+
+    /**
+     * @return true if the column is part of the requested projection.
+     */
+    public boolean hasColumn(String columnName)
+    {
+        return columns.contains(columnName);
+    }
+
+    /**
+     * @return the name of the account the rows belong to.
+     */
+    public String getAccountName()
+    {
+        return accountName;
+    }
+
+    public void setAccountName(String accountName)
+    {
+        this.accountName = accountName;
     }
 
     public Bundle getExtras()
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.storage.StorageDatabaseHelper;
+import fr.opensourceecm.android.alfresco.storage.StorageUtils;
+
+/**
+ * Keep the content files (documents, thumbnails) within their quota.
+ * <p/>
+ * Each content type has a quota in bytes, applied to each account. Sizes and
+ * accesses are recorded in the content index : when a cache exceeds its
+ * quota, the least recently used contents are deleted first, frequently used
+ * contents being kept longer. Open files are pinned and never deleted : files
+ * of outdated contents are deleted once unpinned.
+ * <p/>
+ * The chunks of the {@link SparseContentCache} have their own quota, for all
+ * accounts : the chunks of the least recently read contents are deleted
+ * first, contents being read are kept.
+ * <p/>
+ * Trims run in background. When the device storage is low, caches are
+ * trimmed below a fraction of their quota.
+ *
+ * @author Jean Marie Pascal
+ */
+public class ContentCacheManager
+{
+    private static final String TAG = ContentCacheManager.class.getSimpleName();
+
+    private final StorageDatabaseHelper storageDatabase;
+
+    private final SparseContentCache sparseContentCache;
+
+    private final float lowStorageRatio;
+
+    private final Map<String, Long> quotas = new HashMap<String, Long>();
+
+    private long chunksQuota = Long.MAX_VALUE;
+
+    /** Number of open descriptors by path. */
+    private final Map<String, Integer> pinnedPaths = new HashMap<String, Integer>();
+
+    /** Pinned files to delete once unpinned. */
+    private final Set<String> stalePaths = new HashSet<String>();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+
+    /**
+     * @param lowStorageRatio : Fraction of the quotas kept when the device
+     *            storage is low.
+     */
+    public ContentCacheManager(StorageDatabaseHelper storageDatabase, SparseContentCache sparseContentCache,
+            float lowStorageRatio)
+    {
+        this.storageDatabase = storageDatabase;
+        this.sparseContentCache = sparseContentCache;
+        this.lowStorageRatio = lowStorageRatio;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @param contentType : Type of content, as indexed.
+     * @param maxBytes : Maximum size of the contents of this type, per
+     *            account.
+     */
+    public synchronized void setQuota(String contentType, long maxBytes)
+    {
+        quotas.put(contentType, maxBytes);
+    }
+
+    /**
+     * @param maxBytes : Maximum size of the chunks, for all accounts.
+     */
+    public synchronized void setChunksQuota(long maxBytes)
+    {
+        chunksQuota = maxBytes;
+    }
+
+    /**
+     * Index a content file about to be created for the node. The files of the
+     * other versions of the node are deleted.
+     *
+     * @param contentType : Type of content, as indexed.
+     * @param nodeId : Node identifier without version label.
+     */
+    public void putContent(File file, String accountName, String contentType, String nodeId, String changeToken,
+            String name)
+    {
+        deleteContents(storageDatabase.putContent(file.getPath(), accountName, contentType, nodeId, changeToken,
+                name));
+    }
+
+    /**
+     * Delete the content files of a node which has changed.
+     *
+     * @param nodeId : Node identifier without version label.
+     */
+    public void deleteContents(String accountName, String nodeId)
+    {
+        deleteContents(storageDatabase.getContentPaths(accountName, nodeId));
+    }
+
+    /**
+     * Record an access to a content file. Caches are trimmed in background if
+     * needed : the file may still be in chunks.
+     */
+    public void recordAccess(File file)
+    {
+        if (file.exists())
+        {
+            storageDatabase.recordContentAccess(file.getPath(), file.length());
+        }
+        if (trimScheduled.compareAndSet(false, true))
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    trimScheduled.set(false);
+                    trim(1f);
+                }
+            });
+        }
+    }
+
+    public void onLowStorage()
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                trim(lowStorageRatio);
+            }
+        });
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PINNING
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * The file can't be evicted until unpinned.
+     */
+    public synchronized void pin(String path)
+    {
+        Integer count = pinnedPaths.get(path);
+        pinnedPaths.put(path, (count == null) ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(String path)
+    {
+        Integer count = pinnedPaths.get(path);
+        if (count == null) { return; }
+        if (count > 1)
+        {
+            pinnedPaths.put(path, count - 1);
+        }
+        else
+        {
+            pinnedPaths.remove(path);
+            if (stalePaths.remove(path))
+            {
+                delete(path);
+            }
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @param ratio : Fraction of the quotas to keep.
+     */
+    private void trim(float ratio)
+    {
+        for (String[] cache : storageDatabase.getContentCaches())
+        {
+            Long quota = getQuota(cache[1]);
+            if (quota == null) { continue; }
+
+            long maxBytes = (long) (quota * ratio);
+            long size = storageDatabase.getContentsSize(cache[0], cache[1]);
+            if (size <= maxBytes) { continue; }
+
+            int evicted = 0;
+            for (Entry<String, Long> content : storageDatabase.getContentsToEvict(cache[0], cache[1]).entrySet())
+            {
+                if (size <= maxBytes)
+                {
+                    break;
+                }
+                if (delete(content.getKey()))
+                {
+                    size -= content.getValue();
+                    evicted++;
+                }
+            }
+            Log.d(TAG, "Trim " + cache[1] + " of " + cache[0] + " : " + evicted + " files evicted, " + size + "/"
+                    + maxBytes + " bytes");
+        }
+        sparseContentCache.trim((long) (getChunksQuota() * ratio));
+    }
+
+    /**
+     * Pinned files are deleted once unpinned.
+     */
+    private synchronized void deleteContents(List<String> paths)
+    {
+        for (String path : paths)
+        {
+            if (!delete(path))
+            {
+                stalePaths.add(path);
+            }
+        }
+    }
+
+    private synchronized Long getQuota(String contentType)
+    {
+        return quotas.get(contentType);
+    }
+
+    private synchronized long getChunksQuota()
+    {
+        return chunksQuota;
+    }
+
+    /**
+     * @return false if the file is pinned.
+     */
+    private synchronized boolean delete(String path)
+    {
+        if (pinnedPaths.containsKey(path)) { return false; }
+        StorageUtils.deleteContentFile(path);
+        storageDatabase.removeContent(path);
+        return true;
+    }
+}
@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.mobile.android.api.model.ContentStream;
+import org.alfresco.mobile.android.api.utils.IOUtils;
+
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.storage.StorageUtils;
+import fr.opensourceecm.android.alfresco.storage.provider.SparseContentCache.RangeSource;
+
+/**
+ * Stream a content to a client while it is downloaded.
+ * <p/>
+ * The client gets the read side of a reliable pipe right away : it reads the
+ * first bytes while the rest of the content is downloaded. The content is
+ * downloaded to the partial cache file, which is renamed once complete, and
+ * the pipe is fed from this file. If the client closes the pipe, the download
+ * goes on to complete the cache file. A failed download is reported to the
+ * client through the pipe.
+ * <p/>
+ * Downloads share the {@link SingleFlight} of the provider : a stream
+ * requested while the same content is downloaded waits for the cache file.
+ * <p/>
+ * If the content length is known, the content is streamed through the
+ * {@link SparseContentCache} instead : chunks already cached are read
+ * locally, missing chunks are streamed by one request while the client reads
+ * them.
+ * <p/>
+ * The cache file is pinned in the {@link ContentCacheManager} while it's
+ * streamed. Each pipe is written by its own thread : only the requests to the
+ * server run with the content priority class of the
+ * {@link PriorityTaskExecutor}, so a slow reader never holds one of its
+ * threads.
+ *
+ * @author Jean Marie Pascal
+ */
+public class ContentPipe
+{
+    private static final String TAG = ContentPipe.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Delay between two reads of the partial file while it's downloaded. */
+    private static final long TAIL_DELAY = 100;
+
+    private static final AtomicInteger WRITER_COUNT = new AtomicInteger();
+
+    private final SingleFlight singleFlight;
+
+    private final SparseContentCache contentCache;
+
+    private final ContentCacheManager cacheManager;
+
+    private final Executor executor;
+
+    /**
+     * @param executor : Executor of the requests to the server.
+     */
+    public ContentPipe(SingleFlight singleFlight, SparseContentCache contentCache, ContentCacheManager cacheManager,
+            Executor executor)
+    {
+        this.singleFlight = singleFlight;
+        this.contentCache = contentCache;
+        this.cacheManager = cacheManager;
+        this.executor = executor;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @param key : Key of the content, shared with the other downloads of the
+     *            same content.
+     * @param source : Opens the content stream, called in background.
+     * @param file : Cache file of the content.
+     * @return the read side of the pipe.
+     */
+    public ParcelFileDescriptor open(final String key, final Callable<ContentStream> source, final File file)
+            throws FileNotFoundException
+    {
+        final ParcelFileDescriptor[] pipe = createPipe();
+        cacheManager.pin(file.getPath());
+        startWriter(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stream(key, source, file, pipe[1]);
+                }
+                finally
+                {
+                    release(file);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Stream the content through the sparse cache. Nothing more is fetched
+     * once the client closes the pipe.
+     *
+     * @param key : Key of the content in the sparse cache.
+     * @param length : Length of the content.
+     * @param source : Fetches the missing chunks, called in background.
+     * @param file : Cache file of the content, written once all chunks are
+     *            available.
+     * @return the read side of the pipe.
+     */
+    public ParcelFileDescriptor open(final String key, final long length, final RangeSource source, final File file)
+            throws FileNotFoundException
+    {
+        final ParcelFileDescriptor[] pipe = createPipe();
+        cacheManager.pin(file.getPath());
+        startWriter(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    streamChunks(key, length, source, file, pipe[1]);
+                }
+                finally
+                {
+                    release(file);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Writers block on the client : they run outside of the executor.
+     */
+    private static void startWriter(final Runnable writer)
+    {
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writer.run();
+            }
+        }, TAG + " #" + WRITER_COUNT.incrementAndGet()).start();
+    }
+
+    private static ParcelFileDescriptor[] createPipe() throws FileNotFoundException
+    {
+        try
+        {
+            return ParcelFileDescriptor.createReliablePipe();
+        }
+        catch (IOException e)
+        {
+            throw new FileNotFoundException("Failed to create pipe");
+        }
+    }
+
+    private void stream(final String key, final Callable<ContentStream> source, final File file,
+            ParcelFileDescriptor output)
+    {
+        final File partFile = new File(file.getPath() + StorageUtils.PARTIAL_FILE_EXTENSION);
+        final InputStream[] partStream = new InputStream[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        FutureTask<Boolean> download = new FutureTask<Boolean>(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                try
+                {
+                    return singleFlight.execute(key, new Callable<Boolean>()
+                    {
+                        @Override
+                        public Boolean call() throws Exception
+                        {
+                            ContentStream contentStream = source.call();
+
+                            // Check Stream
+                            if (contentStream == null || contentStream.getLength() == 0) { return false; }
+
+                            // The writer follows the partial file. A truncated
+                            // content never becomes the cache file.
+                            new FileOutputStream(partFile).close();
+                            partStream[0] = new FileInputStream(partFile);
+                            started.countDown();
+                            long length = contentStream.getLength();
+                            if (!StorageUtils.copyFile(contentStream.getInputStream(), length, partFile, null)
+                                    || (length > 0 && partFile.length() != length) || !partFile.renameTo(file))
+                            {
+                                partFile.delete();
+                                return false;
+                            }
+                            return true;
+                        }
+                    });
+                }
+                finally
+                {
+                    started.countDown();
+                }
+            }
+        });
+        executor.execute(download);
+
+        OutputStream os = new FileOutputStream(output.getFileDescriptor());
+        String error = null;
+        try
+        {
+            started.await();
+            if (partStream[0] != null)
+            {
+                tail(partStream[0], download, os);
+            }
+
+            if (!download.get())
+            {
+                error = "Download failed";
+            }
+            else if (partStream[0] == null)
+            {
+                // Downloaded by a concurrent request.
+                StorageUtils.copyFile(file, os);
+            }
+        }
+        catch (Exception e)
+        {
+            Log.w(TAG, Log.getStackTraceString(e));
+            error = getError(e);
+        }
+        finally
+        {
+            IOUtils.closeStream(partStream[0]);
+            close(output, error);
+
+            // The download goes on once the client is gone : the cache file
+            // stays pinned until it completes.
+            waitFor(download);
+        }
+    }
+
+    /**
+     * Write the partial file to the client while it's downloaded.
+     */
+    private static void tail(InputStream partStream, FutureTask<Boolean> download, OutputStream os)
+            throws Exception
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        boolean downloaded = false;
+        while (true)
+        {
+            int read = partStream.read(buffer);
+            if (read > 0)
+            {
+                // Fails once the client closes the pipe.
+                os.write(buffer, 0, read);
+            }
+            else if (downloaded)
+            {
+                return;
+            }
+            else
+            {
+                // Nothing new : wait for more bytes, read once more after the
+                // end of the download.
+                try
+                {
+                    download.get(TAIL_DELAY, TimeUnit.MILLISECONDS);
+                    downloaded = true;
+                }
+                catch (TimeoutException e)
+                {
+                    // Still downloading.
+                }
+            }
+        }
+    }
+
+    private void streamChunks(String key, long length, RangeSource source, File file, ParcelFileDescriptor output)
+    {
+        OutputStream os = new FileOutputStream(output.getFileDescriptor());
+        SparseContentCache.Entry entry = null;
+        String error = null;
+        try
+        {
+            entry = contentCache.open(key, length);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            while (position < length)
+            {
+                if (!entry.isAvailable(position))
+                {
+                    fetch(entry, position, source);
+                }
+
+                // Fails once the client closes the pipe.
+                int read = entry.read(position, buffer, 0, buffer.length, source);
+                os.write(buffer, 0, read);
+                position += read;
+            }
+        }
+        catch (Exception e)
+        {
+            Log.w(TAG, Log.getStackTraceString(e));
+            error = getError(e);
+        }
+        finally
+        {
+            if (entry != null)
+            {
+                contentCache.release(entry, file);
+            }
+            close(output, error);
+        }
+    }
+
+    /**
+     * Fetch the missing chunks with the executor. The writer waits for them
+     * but no executor thread waits for the client.
+     */
+    private void fetch(final SparseContentCache.Entry entry, final long position, final RangeSource source)
+            throws Exception
+    {
+        FutureTask<Void> fetch = new FutureTask<Void>(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                entry.load(position, source);
+                return null;
+            }
+        });
+        executor.execute(fetch);
+        fetch.get();
+    }
+
+    private void release(File file)
+    {
+        cacheManager.unpin(file.getPath());
+        cacheManager.recordAccess(file);
+    }
+
+    private static void waitFor(FutureTask<Boolean> download)
+    {
+        try
+        {
+            download.get();
+        }
+        catch (Exception e)
+        {
+            // Reported to the client.
+        }
+    }
+
+    private static String getError(Exception e)
+    {
+        Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+        return (cause.getMessage() != null) ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    /**
+     * Close the write side : the reader gets the error if any.
+     */
+    private static void close(ParcelFileDescriptor output, String error)
+    {
+        try
+        {
+            if (error == null)
+            {
+                output.close();
+            }
+            else
+            {
+                output.closeWithError(error);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, Log.getStackTraceString(e));
+        }
+    }
+}
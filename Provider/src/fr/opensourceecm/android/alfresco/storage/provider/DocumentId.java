@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import org.alfresco.mobile.android.api.utils.NodeRefUtils;
+
+import android.util.LruCache;
+
+/**
+ * Document identifier exchanged with the clients.
+ * <p/>
+ * An identifier carries its type and its account :
+ * <code>type::account::value</code>, the account root being
+ * <code>1::account</code>. Types and menus are fixed values (never resource
+ * identifiers) : identifiers stay valid across upgrades. Identifiers of
+ * previous versions without account (nodes, sites) are still decoded.
+ * <p/>
+ * Decoded identifiers are immutable and cached : decoding an identifier
+ * returned to a client doesn't allocate.
+ *
+ * @author Jean Marie Pascal
+ */
+public final class DocumentId
+{
+    /** Identifier which can't be decoded. */
+    public static final int TYPE_UNKNOWN = 0;
+
+    public static final int TYPE_ACCOUNT = 1;
+
+    public static final int TYPE_SITE = 2;
+
+    public static final int TYPE_MENU = 3;
+
+    public static final int TYPE_NODE = 4;
+
+    public static final String MENU_SITES = "sites";
+
+    public static final String MENU_FAVORITES = "favorites";
+
+    private static final String SEPARATOR = "::";
+
+    private static final char VERSION_SEPARATOR = ';';
+
+    private static final char ESCAPE = '%';
+
+    private static final int MAX_CACHED_IDS = 5000;
+
+    private static final LruCache<String, DocumentId> CACHE = new LruCache<String, DocumentId>(MAX_CACHED_IDS);
+
+    private final String id;
+
+    private final int type;
+
+    private final String accountName;
+
+    private final String value;
+
+    private DocumentId(String id, int type, String accountName, String value)
+    {
+        this.id = id;
+        this.type = type;
+        this.accountName = accountName;
+        this.value = value;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // ENCODING
+    // //////////////////////////////////////////////////////////////////////
+    public static DocumentId account(String accountName)
+    {
+        return create(TYPE_ACCOUNT, accountName, null);
+    }
+
+    public static DocumentId site(String accountName, String siteId)
+    {
+        return create(TYPE_SITE, accountName, siteId);
+    }
+
+    /**
+     * @param menu : {@link #MENU_SITES} or {@link #MENU_FAVORITES}
+     */
+    public static DocumentId menu(String accountName, String menu)
+    {
+        return create(TYPE_MENU, accountName, menu);
+    }
+
+    /**
+     * @param nodeIdentifier : Node identifier, with its version label if
+     *            any.
+     */
+    public static DocumentId node(String accountName, String nodeIdentifier)
+    {
+        return create(TYPE_NODE, accountName, nodeIdentifier);
+    }
+
+    private static DocumentId create(int type, String accountName, String value)
+    {
+        // Account unknown : previous format.
+        if (accountName == null) { return decode((type == TYPE_SITE) ? type + SEPARATOR + value : value); }
+
+        StringBuilder builder = new StringBuilder(32 + accountName.length()
+                + ((value != null) ? value.length() : 0));
+        builder.append(type).append(SEPARATOR);
+        escape(accountName, builder);
+        if (value != null)
+        {
+            builder.append(SEPARATOR).append(value);
+        }
+        String encodedId = builder.toString();
+
+        DocumentId documentId = CACHE.get(encodedId);
+        if (documentId == null)
+        {
+            documentId = new DocumentId(encodedId, type, accountName, value);
+            CACHE.put(encodedId, documentId);
+        }
+        return documentId;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // DECODING
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the decoded identifier or null if id is null.
+     */
+    public static DocumentId decode(String id)
+    {
+        if (id == null) { return null; }
+        DocumentId documentId = CACHE.get(id);
+        if (documentId == null)
+        {
+            documentId = parse(id);
+            CACHE.put(id, documentId);
+        }
+        return documentId;
+    }
+
+    private static DocumentId parse(String id)
+    {
+        int typeEnd = id.indexOf(SEPARATOR);
+        if (typeEnd == -1)
+        {
+            // Previous format : node identifier without account
+            boolean isNode = NodeRefUtils.isNodeRef(id) || NodeRefUtils.isIdentifier(id);
+            return new DocumentId(id, isNode ? TYPE_NODE : TYPE_UNKNOWN, null, id);
+        }
+
+        int type = parseType(id, typeEnd);
+        int accountStart = typeEnd + SEPARATOR.length();
+        if (type == TYPE_ACCOUNT) { return new DocumentId(id, type, unescape(id, accountStart, id.length()), null); }
+
+        int accountEnd = id.indexOf(SEPARATOR, accountStart);
+        if (accountEnd == -1)
+        {
+            // Previous format : site identifier without account
+            return new DocumentId(id, (type == TYPE_SITE) ? type : TYPE_UNKNOWN, null, id.substring(accountStart));
+        }
+        return new DocumentId(id, type, unescape(id, accountStart, accountEnd), id.substring(accountEnd
+                + SEPARATOR.length()));
+    }
+
+    private static int parseType(String id, int end)
+    {
+        if (end != 1) { return TYPE_UNKNOWN; }
+        int type = id.charAt(0) - '0';
+        return (type >= TYPE_ACCOUNT && type <= TYPE_NODE) ? type : TYPE_UNKNOWN;
+    }
+
+    /**
+     * Account names can't contain the separator once escaped.
+     */
+    private static void escape(String accountName, StringBuilder builder)
+    {
+        for (int i = 0; i < accountName.length(); i++)
+        {
+            char c = accountName.charAt(i);
+            if (c == ESCAPE || c == ':')
+            {
+                builder.append(ESCAPE).append(Integer.toHexString(c).toUpperCase());
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String id, int start, int end)
+    {
+        int escapeIndex = id.indexOf(ESCAPE, start);
+        if (escapeIndex == -1 || escapeIndex >= end) { return id.substring(start, end); }
+
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++)
+        {
+            char c = id.charAt(i);
+            if (c == ESCAPE && i + 2 < end)
+            {
+                builder.append((char) Integer.parseInt(id.substring(i + 1, i + 3), 16));
+                i += 2;
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // GETTERS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the encoded identifier.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the account name or null if unknown (previous format).
+     */
+    public String getAccountName()
+    {
+        return accountName;
+    }
+
+    /**
+     * @return the site identifier, the menu or the node identifier (with its
+     *         version label).
+     */
+    public String getValue()
+    {
+        return value;
+    }
+
+    /**
+     * @return the node identifier without its version label.
+     */
+    public String getNodeIdentifier()
+    {
+        return ChildrenCache.getCleanIdentifier(value);
+    }
+
+    /**
+     * @return the version label of the node or null if none.
+     */
+    public String getVersionLabel()
+    {
+        int index = value.indexOf(VERSION_SEPARATOR);
+        return (index == -1) ? null : value.substring(index + 1);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return (o instanceof DocumentId) && id.equals(((DocumentId) o).id);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return id;
+    }
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.alfresco.mobile.android.api.session.AlfrescoSession;
+
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.storage.NodeSummary;
+import fr.opensourceecm.android.alfresco.storage.StorageDatabaseHelper;
+
+/**
+ * Speculative retrieval of the listings the user is likely to open next.
+ * <p/>
+ * Once a listing is complete, its subfolders are prefetched : most visited
+ * first (local access history), then in listing order. Each prefetch is
+ * bounded by a number of requests and a number of children. It runs with the
+ * prefetch priority and waits while foreground listings are in progress. The
+ * access history is written on its own thread : it never waits behind a
+ * prefetch.
+ *
+ * @author Jean Marie Pascal
+ */
+public abstract class FolderPrefetcher
+{
+    private static final String TAG = FolderPrefetcher.class.getSimpleName();
+
+    private final StorageDatabaseHelper storageDatabase;
+
+    private final int maxRequests;
+
+    private final int maxItems;
+
+    private final Executor executor;
+
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
+
+    private final Object foregroundLock = new Object();
+
+    private int foregroundTasks;
+
+    private FutureTask<Void> pendingPrefetch;
+
+    /**
+     * @param executor : Executor of the prefetch requests.
+     * @param maxRequests : Maximum number of listings requested per prefetch.
+     * @param maxItems : Maximum number of children retrieved per prefetch.
+     */
+    public FolderPrefetcher(StorageDatabaseHelper storageDatabase, Executor executor, int maxRequests, int maxItems)
+    {
+        this.storageDatabase = storageDatabase;
+        this.executor = executor;
+        this.maxRequests = maxRequests;
+        this.maxItems = maxItems;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Keep track of the folders opened by the user.
+     */
+    public void recordAccess(final String accountName, final String folderId)
+    {
+        historyExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                storageDatabase.recordAccess(accountName, folderId);
+            }
+        });
+    }
+
+    /**
+     * Prefetch the subfolders of a listing. Replace any pending prefetch : the
+     * user has moved elsewhere.
+     */
+    public synchronized void schedule(final String accountName, final AlfrescoSession session,
+            List<NodeSummary> children, final ListingSortOrder sortOrder)
+    {
+        cancel();
+        if (maxRequests <= 0 || maxItems <= 0) { return; }
+
+        final List<String> folders = new ArrayList<String>();
+        for (NodeSummary node : children)
+        {
+            if (node.isFolder())
+            {
+                folders.add(node.getIdentifier());
+            }
+        }
+        if (folders.isEmpty()) { return; }
+
+        pendingPrefetch = new FutureTask<Void>(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int requests = 0;
+                int items = 0;
+                for (String folderId : sortByAccess(accountName, folders))
+                {
+                    if (requests >= maxRequests || items >= maxItems) { break; }
+                    if (!waitForeground()) { return; }
+                    try
+                    {
+                        int count = prefetch(accountName, session, folderId, sortOrder, maxItems - items);
+                        if (count >= 0)
+                        {
+                            requests++;
+                            items += count;
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        // Best effort : the listing will be retrieved on
+                        // demand.
+                        Log.w(TAG, Log.getStackTraceString(e));
+                        return;
+                    }
+                }
+            }
+        }, null);
+        executor.execute(pendingPrefetch);
+    }
+
+    public synchronized void cancel()
+    {
+        if (pendingPrefetch != null)
+        {
+            pendingPrefetch.cancel(true);
+            pendingPrefetch = null;
+        }
+    }
+
+    /**
+     * A listing requested by the user has started : prefetch must wait.
+     */
+    public void foregroundStarted()
+    {
+        synchronized (foregroundLock)
+        {
+            foregroundTasks++;
+        }
+    }
+
+    public void foregroundFinished()
+    {
+        synchronized (foregroundLock)
+        {
+            if (foregroundTasks > 0)
+            {
+                foregroundTasks--;
+            }
+            foregroundLock.notifyAll();
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PREFETCH
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Retrieve the listing of the folder.
+     *
+     * @param accountName : Account the folder belongs to.
+     * @param session : Session of the account.
+     * @param sortOrder : Sort order of the parent listing.
+     * @param maxItems : Maximum number of children to retrieve.
+     * @return the number of children retrieved or -1 if the listing was
+     *         already available (no request).
+     */
+    protected abstract int prefetch(String accountName, AlfrescoSession session, String folderId,
+            ListingSortOrder sortOrder, int maxItems);
+
+    private List<String> sortByAccess(String accountName, List<String> folderIds)
+    {
+        final Map<String, Integer> accessCounts = new HashMap<String, Integer>(folderIds.size());
+        for (String folderId : folderIds)
+        {
+            accessCounts.put(folderId, storageDatabase.getAccessCount(accountName, folderId));
+        }
+
+        // Stable sort : listing order is kept between folders never visited.
+        List<String> sortedFolders = new ArrayList<String>(folderIds);
+        Collections.sort(sortedFolders, new Comparator<String>()
+        {
+            @Override
+            public int compare(String lhs, String rhs)
+            {
+                return accessCounts.get(rhs).compareTo(accessCounts.get(lhs));
+            }
+        });
+        return sortedFolders;
+    }
+
+    /**
+     * @return false if the prefetch has been cancelled in the meantime.
+     */
+    private boolean waitForeground()
+    {
+        synchronized (foregroundLock)
+        {
+            while (foregroundTasks > 0)
+            {
+                try
+                {
+                    foregroundLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+            }
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import org.alfresco.mobile.android.api.services.DocumentFolderService;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+
+import android.provider.DocumentsContract.Document;
+import android.text.TextUtils;
+
+/**
+ * Translate the sortOrder requested by a Storage Access Framework client
+ * into a server side ordering of the listing.
+ * <p/>
+ * Supported columns : display name, last modified and size. Only the first
+ * sort clause is taken into account.
+ *
+ * @author Jean Marie Pascal
+ */
+public final class ListingSortOrder
+{
+    private static final String ASC = "ASC";
+
+    private static final String DESC = "DESC";
+
+    private final String column;
+
+    private final boolean ascending;
+
+    private ListingSortOrder(String column, boolean ascending)
+    {
+        this.column = column;
+        this.ascending = ascending;
+    }
+
+    /**
+     * @param sortOrder : SQL like order clause i.e "_display_name ASC"
+     * @return the sort order or null if the sortOrder is empty or not
+     *         supported.
+     */
+    public static ListingSortOrder parse(String sortOrder)
+    {
+        if (TextUtils.isEmpty(sortOrder)) { return null; }
+
+        // Only the first clause is used
+        String clause = sortOrder.split(",")[0].trim();
+        String[] tokens = clause.split("\\s+");
+
+        String column = tokens[0];
+        if (!Document.COLUMN_DISPLAY_NAME.equals(column) && !Document.COLUMN_LAST_MODIFIED.equals(column)
+                && !Document.COLUMN_SIZE.equals(column)) { return null; }
+
+        boolean ascending = tokens.length < 2 || !DESC.equalsIgnoreCase(tokens[1]);
+        return new ListingSortOrder(column, ascending);
+    }
+
+    /**
+     * @return the Alfresco SDK sort property or null if the SDK doesn't support
+     *         this column. In this case {@link #getOrderBy()} must be used.
+     */
+    public String getSortProperty()
+    {
+        if (Document.COLUMN_DISPLAY_NAME.equals(column))
+        {
+            return DocumentFolderService.SORT_PROPERTY_NAME;
+        }
+        else if (Document.COLUMN_LAST_MODIFIED.equals(column))
+        {
+            return DocumentFolderService.SORT_PROPERTY_MODIFIED_AT;
+        }
+        return null;
+    }
+
+    /**
+     * @return the CMIS orderBy clause.
+     */
+    public String getOrderBy()
+    {
+        String property = null;
+        if (Document.COLUMN_DISPLAY_NAME.equals(column))
+        {
+            property = PropertyIds.NAME;
+        }
+        else if (Document.COLUMN_LAST_MODIFIED.equals(column))
+        {
+            property = PropertyIds.LAST_MODIFICATION_DATE;
+        }
+        else
+        {
+            property = PropertyIds.CONTENT_STREAM_LENGTH;
+        }
+        return property + " " + (ascending ? ASC : DESC);
+    }
+
+    public boolean isAscending()
+    {
+        return ascending;
+    }
+
+    @Override
+    public String toString()
+    {
+        return column + " " + (ascending ? ASC : DESC);
+    }
+}
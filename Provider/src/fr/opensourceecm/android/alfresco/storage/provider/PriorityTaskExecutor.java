@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Bounded executor of the provider remote requests.
+ * <p/>
+ * Tasks are queued per priority class. A free thread always takes the oldest
+ * task of the highest priority class which hasn't reached its own
+ * concurrency limit : refreshes and prefetches can't starve the listings the
+ * user is waiting for. Queue depth and wait time are recorded per class.
+ *
+ * @author Jean Marie Pascal
+ */
+public class PriorityTaskExecutor
+{
+    private static final String TAG = PriorityTaskExecutor.class.getSimpleName();
+
+    /** Create, delete... : the user waits for the result. */
+    public static final int PRIORITY_USER_ACTION = 0;
+
+    /** Listing without any cached value : the user waits for the result. */
+    public static final int PRIORITY_INTERACTIVE = 1;
+
+    /** Download of an opened document, or of the chunks it streams. */
+    public static final int PRIORITY_CONTENT = 2;
+
+    /** Download of a thumbnail. */
+    public static final int PRIORITY_THUMBNAIL = 3;
+
+    /** Listing already displayed from cache. */
+    public static final int PRIORITY_REFRESH = 4;
+
+    /** Speculative requests. */
+    public static final int PRIORITY_PREFETCH = 5;
+
+    private static final String[] PRIORITY_NAMES = new String[] { "user action", "interactive", "content",
+            "thumbnail", "refresh", "prefetch" };
+
+    private final int maxThreads;
+
+    private final int[] maxRunning;
+
+    private final ExecutorService threadPool;
+
+    private final Executor[] executors;
+
+    private final ArrayDeque<QueuedTask>[] queues;
+
+    private final int[] running;
+
+    private int totalRunning;
+
+    // Statistics
+    private final int[] maxQueueDepth;
+
+    private final long[] executedCount;
+
+    private final long[] totalWaitTime;
+
+    private final long[] maxWaitTime;
+
+    /**
+     * @param maxThreads : Maximum number of tasks running at the same time.
+     * @param maxContent : Maximum number of document downloads & streams
+     *            running at the same time.
+     * @param maxThumbnail : Maximum number of thumbnail downloads running at
+     *            the same time.
+     * @param maxRefresh : Maximum number of refresh tasks running at the same
+     *            time.
+     * @param maxPrefetch : Maximum number of prefetch tasks running at the
+     *            same time.
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityTaskExecutor(int maxThreads, int maxContent, int maxThumbnail, int maxRefresh, int maxPrefetch)
+    {
+        this.maxThreads = maxThreads;
+        this.maxRunning = new int[] { maxThreads, maxThreads, Math.min(maxContent, maxThreads),
+                Math.min(maxThumbnail, maxThreads), Math.min(maxRefresh, maxThreads),
+                Math.min(maxPrefetch, maxThreads) };
+
+        int classes = PRIORITY_NAMES.length;
+        this.queues = new ArrayDeque[classes];
+        this.executors = new Executor[classes];
+        for (int i = 0; i < classes; i++)
+        {
+            queues[i] = new ArrayDeque<QueuedTask>();
+            final int priority = i;
+            executors[i] = new Executor()
+            {
+                @Override
+                public void execute(Runnable command)
+                {
+                    PriorityTaskExecutor.this.execute(command, priority);
+                }
+            };
+        }
+        this.running = new int[classes];
+        this.maxQueueDepth = new int[classes];
+        this.executedCount = new long[classes];
+        this.totalWaitTime = new long[classes];
+        this.maxWaitTime = new long[classes];
+
+        // Never more than maxThreads tasks are submitted to the pool.
+        this.threadPool = Executors.newFixedThreadPool(maxThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                return new Thread(runnable, TAG + " #" + count.getAndIncrement());
+            }
+        });
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return an executor which queues its tasks with the priority i.e to be
+     *         used with AsyncTask.executeOnExecutor.
+     */
+    public Executor getExecutor(int priority)
+    {
+        return executors[priority];
+    }
+
+    public synchronized void execute(Runnable command, int priority)
+    {
+        queues[priority].add(new QueuedTask(command, priority, SystemClock.elapsedRealtime()));
+        maxQueueDepth[priority] = Math.max(maxQueueDepth[priority], queues[priority].size());
+        scheduleNext();
+    }
+
+    /**
+     * Print queue depth & wait time per priority class.
+     */
+    public synchronized void dump(PrintWriter writer)
+    {
+        writer.println(TAG + " : " + totalRunning + "/" + maxThreads + " running");
+        for (int i = 0; i < PRIORITY_NAMES.length; i++)
+        {
+            long averageWaitTime = (executedCount[i] > 0) ? totalWaitTime[i] / executedCount[i] : 0;
+            writer.println("  " + PRIORITY_NAMES[i] + " : running=" + running[i] + "/" + maxRunning[i] + " queued="
+                    + queues[i].size() + " maxQueued=" + maxQueueDepth[i] + " executed=" + executedCount[i]
+                    + " avgWaitMs=" + averageWaitTime + " maxWaitMs=" + maxWaitTime[i]);
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    private synchronized void scheduleNext()
+    {
+        while (totalRunning < maxThreads)
+        {
+            QueuedTask task = pollNext();
+            if (task == null) { return; }
+
+            long waitTime = SystemClock.elapsedRealtime() - task.queueTime;
+            executedCount[task.priority]++;
+            totalWaitTime[task.priority] += waitTime;
+            maxWaitTime[task.priority] = Math.max(maxWaitTime[task.priority], waitTime);
+
+            running[task.priority]++;
+            totalRunning++;
+            threadPool.execute(task);
+        }
+    }
+
+    private QueuedTask pollNext()
+    {
+        for (int i = 0; i < queues.length; i++)
+        {
+            if (!queues[i].isEmpty() && running[i] < maxRunning[i]) { return queues[i].poll(); }
+        }
+        return null;
+    }
+
+    private synchronized void onTaskFinished(int priority)
+    {
+        running[priority]--;
+        totalRunning--;
+        scheduleNext();
+    }
+
+    private final class QueuedTask implements Runnable
+    {
+        private final Runnable command;
+
+        private final int priority;
+
+        private final long queueTime;
+
+        private QueuedTask(Runnable command, int priority, long queueTime)
+        {
+            this.command = command;
+            this.priority = priority;
+            this.queueTime = queueTime;
+        }
+
+        @Override
+        public void run()
+        {
+            Process.setThreadPriority((priority == PRIORITY_PREFETCH) ? Process.THREAD_PRIORITY_LOWEST
+                    : Process.THREAD_PRIORITY_BACKGROUND);
+            try
+            {
+                command.run();
+            }
+            finally
+            {
+                onTaskFinished(priority);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.mobile.android.api.model.RepositoryInfo;
+import org.alfresco.mobile.android.api.session.AlfrescoSession;
+import org.alfresco.mobile.android.api.session.CloudSession;
+import org.alfresco.mobile.android.api.session.RepositorySession;
+import org.alfresco.mobile.android.api.session.impl.RepositorySessionImpl;
+import org.alfresco.mobile.android.api.utils.PublicAPIUrlRegistry;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.account.AccountConstants;
+
+/**
+ * Persisted session bootstrap data, one set per account.
+ * <p/>
+ * A first connection discovers the CMIS binding (service document, public
+ * API probe) and lists the repositories. The resolved binding URL and the
+ * repository identifier are kept in the account : next connections go
+ * straight to the repository and only retrieve its information.
+ * <p/>
+ * Data is discarded if the account URL, the repository version or the format
+ * of the cache changes.
+ *
+ * @author Jean Marie Pascal
+ */
+public class RepositoryInfoCache
+{
+    private static final String TAG = RepositoryInfoCache.class.getSimpleName();
+
+    /** Increment when the stored data or its interpretation changes. */
+    private static final String CACHE_VERSION = "1";
+
+    private static final String BINDING_SERVICE_CMIS = "/service/cmis";
+
+    private static final String BINDING_CMISATOM = "/cmisatom";
+
+    private final AccountManager accountManager;
+
+    public RepositoryInfoCache(Context context)
+    {
+        this.accountManager = AccountManager.get(context);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return true if bootstrap data is available for the account.
+     */
+    public boolean contains(Account account)
+    {
+        return CACHE_VERSION.equals(accountManager.getUserData(account,
+                AccountConstants.ACCOUNT_SESSION_CACHE_VERSION))
+                && TextUtils.equals(accountManager.getUserData(account, AccountConstants.ACCOUNT_URL),
+                        accountManager.getUserData(account, AccountConstants.ACCOUNT_SESSION_URL))
+                && accountManager.getUserData(account, AccountConstants.ACCOUNT_SESSION_REPOSITORY_ID) != null;
+    }
+
+    /**
+     * @return the URL to connect to : the resolved binding if known, the
+     *         account URL otherwise.
+     */
+    public String getUrl(Account account)
+    {
+        String bindingUrl = contains(account) ? accountManager.getUserData(account,
+                AccountConstants.ACCOUNT_SESSION_BINDING_URL) : null;
+        return (bindingUrl != null) ? bindingUrl : accountManager.getUserData(account, AccountConstants.ACCOUNT_URL);
+    }
+
+    /**
+     * @return the session settings which skip the repository discovery or
+     *         null if unknown.
+     */
+    public Map<String, Serializable> getSettings(Account account)
+    {
+        if (!contains(account)) { return null; }
+
+        Map<String, Serializable> settings = new HashMap<String, Serializable>(2);
+        settings.put(RepositorySession.REPOSITORY_ID,
+                accountManager.getUserData(account, AccountConstants.ACCOUNT_SESSION_REPOSITORY_ID));
+        String networkId = accountManager.getUserData(account, AccountConstants.ACCOUNT_SESSION_NETWORK_ID);
+        if (networkId != null)
+        {
+            settings.put(CloudSession.CLOUD_NETWORK_ID, networkId);
+        }
+        return settings;
+    }
+
+    /**
+     * Store the bootstrap data of a connected session.
+     */
+    public void put(Account account, AlfrescoSession session)
+    {
+        RepositoryInfo repositoryInfo = session.getRepositoryInfo();
+        if (repositoryInfo == null || repositoryInfo.getIdentifier() == null) { return; }
+
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_URL,
+                accountManager.getUserData(account, AccountConstants.ACCOUNT_URL));
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_BINDING_URL, getBindingUrl(session));
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_REPOSITORY_ID,
+                repositoryInfo.getIdentifier());
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_REPOSITORY_VERSION,
+                repositoryInfo.getVersion());
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_NETWORK_ID,
+                (session instanceof CloudSession) ? ((CloudSession) session).getNetwork().getIdentifier() : null);
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_CACHE_VERSION, CACHE_VERSION);
+    }
+
+    /**
+     * Check a session connected with the bootstrap data. If the repository
+     * has been upgraded, data is discarded : the binding may have changed.
+     */
+    public void validate(Account account, AlfrescoSession session)
+    {
+        RepositoryInfo repositoryInfo = session.getRepositoryInfo();
+        String version = accountManager.getUserData(account, AccountConstants.ACCOUNT_SESSION_REPOSITORY_VERSION);
+        if (repositoryInfo != null && !TextUtils.equals(version, repositoryInfo.getVersion()))
+        {
+            Log.d(TAG, "Repository upgraded : " + version + " -> " + repositoryInfo.getVersion());
+            invalidate(account);
+        }
+    }
+
+    public void invalidate(Account account)
+    {
+        accountManager.setUserData(account, AccountConstants.ACCOUNT_SESSION_CACHE_VERSION, null);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the binding URL selected by the SDK during the discovery or
+     *         null if the account URL must be used.
+     */
+    private static String getBindingUrl(AlfrescoSession session)
+    {
+        if (!(session instanceof RepositorySessionImpl)) { return null; }
+
+        // Same choice as the SDK : public API if available, then the CMIS
+        // binding of the repository version.
+        String baseUrl = session.getBaseUrl();
+        if (((RepositorySessionImpl) session).hasPublicAPI()) { return PublicAPIUrlRegistry.getPublicAPIUrl(baseUrl); }
+        Integer majorVersion = session.getRepositoryInfo().getMajorVersion();
+        if (majorVersion != null && majorVersion >= 4) { return baseUrl.concat(BINDING_CMISATOM); }
+        return baseUrl.concat(BINDING_SERVICE_CMIS);
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.alfresco.mobile.android.api.session.AlfrescoSession;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Connected sessions, one per account.
+ * <p/>
+ * Several accounts can be browsed at the same time without reconnecting.
+ * Sessions unused for longer than the idle timeout are evicted : they are
+ * connected again on the next request.
+ *
+ * @author Jean Marie Pascal
+ */
+public class SessionPool
+{
+    private static final String TAG = SessionPool.class.getSimpleName();
+
+    private final Map<String, PooledSession> sessions = new HashMap<String, PooledSession>();
+
+    private final long idleTimeout;
+
+    /**
+     * @param idleTimeout : Duration (in ms) after which an unused session is
+     *            evicted.
+     */
+    public SessionPool(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the session of the account or null if not connected.
+     */
+    public synchronized AlfrescoSession get(String accountName)
+    {
+        evictIdle();
+        PooledSession pooledSession = sessions.get(accountName);
+        if (pooledSession == null) { return null; }
+        pooledSession.lastAccess = SystemClock.elapsedRealtime();
+        return pooledSession.session;
+    }
+
+    /**
+     * @return the session of the account or null if not connected. Doesn't
+     *         count as a use of the session.
+     */
+    public synchronized AlfrescoSession peek(String accountName)
+    {
+        PooledSession pooledSession = sessions.get(accountName);
+        return (pooledSession != null) ? pooledSession.session : null;
+    }
+
+    public synchronized boolean contains(String accountName)
+    {
+        evictIdle();
+        return sessions.containsKey(accountName);
+    }
+
+    public synchronized void put(String accountName, AlfrescoSession session)
+    {
+        sessions.put(accountName, new PooledSession(session));
+    }
+
+    public synchronized void remove(String accountName)
+    {
+        sessions.remove(accountName);
+    }
+
+    /**
+     * Remove sessions unused for longer than the idle timeout.
+     */
+    public synchronized void evictIdle()
+    {
+        long now = SystemClock.elapsedRealtime();
+        for (Iterator<Map.Entry<String, PooledSession>> iterator = sessions.entrySet().iterator(); iterator
+                .hasNext();)
+        {
+            Map.Entry<String, PooledSession> entry = iterator.next();
+            if (now - entry.getValue().lastAccess > idleTimeout)
+            {
+                Log.d(TAG, "Evict session : " + entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void evictAll()
+    {
+        sessions.clear();
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // ENTRY
+    // //////////////////////////////////////////////////////////////////////
+    private static final class PooledSession
+    {
+        private final AlfrescoSession session;
+
+        private long lastAccess;
+
+        private PooledSession(AlfrescoSession session)
+        {
+            this.session = session;
+            this.lastAccess = SystemClock.elapsedRealtime();
+        }
+    }
+}
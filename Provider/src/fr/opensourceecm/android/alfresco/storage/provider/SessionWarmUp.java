@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.text.TextUtils;
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.account.AccountConstants;
+
+/**
+ * Connect the account sessions in background when the provider starts : the
+ * first listing of a root doesn't wait for the connection.
+ * <p/>
+ * Most recently used accounts are connected first. The warm-up is skipped
+ * without connectivity (or on metered networks if configured) and never
+ * connects more than a fixed number of sessions at the same time.
+ *
+ * @author Jean Marie Pascal
+ */
+public abstract class SessionWarmUp
+{
+    private static final String TAG = SessionWarmUp.class.getSimpleName();
+
+    private final Context context;
+
+    private final Executor executor;
+
+    private final int maxConnections;
+
+    private final boolean unmeteredOnly;
+
+    /**
+     * @param executor : Executor of the connections.
+     * @param maxConnections : Maximum number of sessions connected at the
+     *            same time.
+     * @param unmeteredOnly : true to skip the warm-up on metered networks.
+     */
+    public SessionWarmUp(Context context, Executor executor, int maxConnections, boolean unmeteredOnly)
+    {
+        this.context = context;
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.unmeteredOnly = unmeteredOnly;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    public void start(Collection<Account> accounts)
+    {
+        if (maxConnections <= 0 || accounts.isEmpty()) { return; }
+        if (!isNetworkAllowed())
+        {
+            Log.d(TAG, "Warm-up skipped : network unavailable or metered");
+            return;
+        }
+
+        final ConcurrentLinkedQueue<Account> pendingAccounts = new ConcurrentLinkedQueue<Account>(
+                sortByLastUse(accounts));
+
+        // Each worker connects the next pending account : no more than
+        // maxConnections sessions are connected at the same time.
+        int workers = Math.min(maxConnections, pendingAccounts.size());
+        for (int i = 0; i < workers; i++)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Account account;
+                    while ((account = pendingAccounts.poll()) != null)
+                    {
+                        try
+                        {
+                            connect(account);
+                        }
+                        catch (Exception e)
+                        {
+                            // Best effort : the session will be connected on
+                            // demand.
+                            Log.w(TAG, Log.getStackTraceString(e));
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // CONNECTION
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Connect the session of the account if it can be done without the user.
+     */
+    protected abstract void connect(Account account);
+
+    private boolean isNetworkAllowed()
+    {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) { return false; }
+        return !unmeteredOnly || !connectivityManager.isActiveNetworkMetered();
+    }
+
+    private List<Account> sortByLastUse(Collection<Account> accounts)
+    {
+        AccountManager accountManager = AccountManager.get(context);
+        final Map<String, Long> lastUses = new HashMap<String, Long>(accounts.size());
+        for (Account account : accounts)
+        {
+            String lastUse = accountManager.getUserData(account, AccountConstants.ACCOUNT_LAST_USED);
+            lastUses.put(account.name, TextUtils.isEmpty(lastUse) ? 0L : Long.parseLong(lastUse));
+        }
+
+        List<Account> sortedAccounts = new ArrayList<Account>(accounts);
+        Collections.sort(sortedAccounts, new Comparator<Account>()
+        {
+            @Override
+            public int compare(Account lhs, Account rhs)
+            {
+                return lastUses.get(rhs.name).compareTo(lastUses.get(lhs.name));
+            }
+        });
+        return sortedAccounts;
+    }
+}
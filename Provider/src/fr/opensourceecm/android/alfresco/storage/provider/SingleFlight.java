@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.CancellationSignal;
+import android.os.CancellationSignal.OnCancelListener;
+
+/**
+ * Coalesce identical remote requests.
+ * <p/>
+ * Each request is identified by a key which describes the logical operation
+ * (listing of a folder, node, content of a document at a given version...).
+ * While a request is in flight, other callers with the same key wait for its
+ * result instead of sending the same request again.
+ * <p/>
+ * A caller which cancels its wait leaves the request to the other callers :
+ * the request itself is cancelled once all its callers have left.
+ *
+ * @author Jean Marie Pascal
+ */
+public class SingleFlight
+{
+    private final ConcurrentMap<String, Flight<?>> calls = new ConcurrentHashMap<String, Flight<?>>();
+
+    /**
+     * Request which can be cancelled while in flight.
+     */
+    public interface CancellableCallable<T>
+    {
+        /**
+         * @param signal : Cancelled once every caller has left the request.
+         */
+        T call(CancellationSignal signal) throws Exception;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Execute the callable in the calling thread or wait for the result of
+     * the identical request already in flight.
+     * <p/>
+     * A request in flight which hasn't started yet i.e still queued in an
+     * executor, is run in the calling thread : a task waiting for a request
+     * queued behind it can't block its executor.
+     * <p/>
+     * Unchecked exceptions thrown by the callable are rethrown to every
+     * caller.
+     *
+     * @throws CancellationException if the calling thread is interrupted
+     *             while waiting.
+     */
+    public <T> T execute(String key, final Callable<T> callable)
+    {
+        Flight<T> flight = new Flight<T>(key, new CancellableCallable<T>()
+        {
+            @Override
+            public T call(CancellationSignal signal) throws Exception
+            {
+                return callable.call();
+            }
+        }, new CancellationSignal());
+        Flight<T> inFlight = join(key, flight);
+
+        // Nothing done if already running.
+        inFlight.run();
+        return await(key, inFlight, null);
+    }
+
+    /**
+     * Execute the callable with the executor or join the identical request
+     * already in flight, then wait for its result.
+     * <p/>
+     * The signal of the caller only cancels its own wait : the request goes
+     * on for the other callers, it's cancelled once all of them have left.
+     *
+     * @param signal : Signal of the caller, may be null.
+     * @throws CancellationException if the caller has cancelled its wait or
+     *             the calling thread is interrupted while waiting.
+     */
+    public <T> T execute(String key, CancellableCallable<T> callable, Executor executor, CancellationSignal signal)
+    {
+        Flight<T> flight = new Flight<T>(key, callable, new CancellationSignal());
+        Flight<T> inFlight = join(key, flight);
+        if (inFlight == flight)
+        {
+            try
+            {
+                executor.execute(flight);
+            }
+            catch (RejectedExecutionException e)
+            {
+                flight.cancel(false);
+                flight.leave();
+                throw e;
+            }
+        }
+        return await(key, inFlight, signal);
+    }
+
+    /**
+     * @return true if a request with this key is in flight.
+     */
+    public boolean isInFlight(String key)
+    {
+        return calls.containsKey(key);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the request in flight the caller has joined : the flight itself
+     *         if there's none.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Flight<T> join(String key, Flight<T> flight)
+    {
+        while (true)
+        {
+            Flight<T> inFlight = (Flight<T>) calls.putIfAbsent(key, flight);
+            if (inFlight == null)
+            {
+                flight.join();
+                return flight;
+            }
+            if (inFlight.join()) { return inFlight; }
+
+            // Left by all its callers : never joined again.
+            calls.remove(key, inFlight);
+        }
+    }
+
+    private <T> T await(String key, final Flight<T> flight, CancellationSignal signal)
+    {
+        boolean cancelled = false;
+        try
+        {
+            if (signal != null)
+            {
+                signal.setOnCancelListener(new OnCancelListener()
+                {
+                    @Override
+                    public void onCancel()
+                    {
+                        synchronized (flight)
+                        {
+                            flight.notifyAll();
+                        }
+                    }
+                });
+            }
+            synchronized (flight)
+            {
+                while (!flight.isDone() && !(cancelled = (signal != null && signal.isCanceled())))
+                {
+                    flight.wait();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        }
+        finally
+        {
+            if (signal != null)
+            {
+                signal.setOnCancelListener(null);
+            }
+            flight.leave();
+        }
+        if (cancelled) { throw new CancellationException(key); }
+
+        try
+        {
+            return flight.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CancellationException(key);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error) { throw (Error) cause; }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Request shared by its callers.
+     */
+    private final class Flight<T> extends FutureTask<T>
+    {
+        private final String key;
+
+        private final CancellationSignal signal;
+
+        private int callers;
+
+        Flight(String key, final CancellableCallable<T> callable, final CancellationSignal signal)
+        {
+            super(new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    return callable.call(signal);
+                }
+            });
+            this.key = key;
+            this.signal = signal;
+        }
+
+        @Override
+        public void run()
+        {
+            // Left before it started.
+            if (signal.isCanceled())
+            {
+                cancel(false);
+                return;
+            }
+            super.run();
+        }
+
+        /**
+         * @return false if the request has been left by all its callers.
+         */
+        synchronized boolean join()
+        {
+            if (signal.isCanceled()) { return false; }
+            callers++;
+            return true;
+        }
+
+        synchronized void leave()
+        {
+            if (--callers == 0 && !isDone())
+            {
+                signal.cancel();
+                calls.remove(key, this);
+            }
+        }
+
+        @Override
+        protected void done()
+        {
+            calls.remove(key, this);
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+    }
+}
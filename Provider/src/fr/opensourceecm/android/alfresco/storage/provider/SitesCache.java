@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.mobile.android.api.model.Site;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+/**
+ * In-memory cache of the sites listing, one listing per account.
+ * <p/>
+ * Like {@link ChildrenCache}, entries older than the time to live are still
+ * served but flagged as stale : the caller is responsible to revalidate them
+ * in background.
+ *
+ * @author Jean Marie Pascal
+ */
+public class SitesCache
+{
+    /** Number of accounts whose sites listing is kept in memory. */
+    private static final int MAX_ACCOUNTS = 4;
+
+    private final LruCache<String, CacheEntry> entries = new LruCache<String, CacheEntry>(MAX_ACCOUNTS);
+
+    private final long timeToLive;
+
+    /**
+     * @param timeToLive : Duration (in ms) a listing is considered as fresh.
+     */
+    public SitesCache(long timeToLive)
+    {
+        this.timeToLive = timeToLive;
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    public CacheEntry get(String accountName)
+    {
+        return entries.get(accountName);
+    }
+
+    /**
+     * Store a snapshot of the sites listing.
+     *
+     * @param complete : false if other pages are still expected.
+     */
+    public void put(String accountName, List<Site> sites, boolean complete)
+    {
+        entries.put(accountName, new CacheEntry(sites, complete, SystemClock.elapsedRealtime()));
+    }
+
+    public boolean isStale(CacheEntry entry)
+    {
+        return SystemClock.elapsedRealtime() - entry.creationTime > timeToLive;
+    }
+
+    public void invalidate(String accountName)
+    {
+        entries.remove(accountName);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // ENTRY
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Immutable snapshot of a sites listing.
+     */
+    public static final class CacheEntry
+    {
+        private final List<Site> sites;
+
+        private final boolean complete;
+
+        private final long creationTime;
+
+        private CacheEntry(List<Site> sites, boolean complete, long creationTime)
+        {
+            this.sites = Collections.unmodifiableList(new ArrayList<Site>(sites));
+            this.complete = complete;
+            this.creationTime = creationTime;
+        }
+
+        public List<Site> getSites()
+        {
+            return sites;
+        }
+
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+}
@@ -0,0 +1,641 @@
+/*******************************************************************************
+ * Copyright Jean Marie Pascal
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+package fr.opensourceecm.android.alfresco.storage.provider;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.mobile.android.api.utils.IOUtils;
+
+import android.util.Log;
+import fr.opensourceecm.android.alfresco.storage.StorageUtils;
+
+/**
+ * Sparse on-disk cache of document contents, filled chunk by chunk.
+ * <p/>
+ * Each content (node at a given version) has a data file of the content
+ * length, where chunks are written at their offset, and an index of the
+ * chunks available. Reads at any offset are served from the cached chunks,
+ * missing chunks are fetched on demand : reading the end of a document
+ * doesn't download its beginning. Chunks are kept on disk : a content read
+ * again only fetches what is still missing.
+ * <p/>
+ * A sequential read is served by one streamed request, kept open between the
+ * reads. Range requests are only sent to fill a gap after a seek. If the
+ * server ignores ranges, the stream goes on to the position instead of
+ * downloading the beginning of the content again.
+ * <p/>
+ * Once all its chunks are available and the entry is released, the data file
+ * becomes the cache file of the document.
+ *
+ * @author Jean Marie Pascal
+ */
+public class SparseContentCache
+{
+    private static final String TAG = SparseContentCache.class.getSimpleName();
+
+    /** Increment when the index format changes. */
+    private static final int INDEX_VERSION = 1;
+
+    private static final String DATA_EXTENSION = ".data";
+
+    private static final String INDEX_EXTENSION = ".chunks";
+
+    private final File directory;
+
+    private final int chunkSize;
+
+    private final int maxChunksPerRequest;
+
+    /** Entries in use, shared by their readers. */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * @param directory : Directory of the data & index files.
+     * @param chunkSize : Size (in bytes) of a chunk.
+     * @param maxChunksPerRequest : Maximum number of consecutive missing
+     *            chunks fetched by one range request.
+     */
+    public SparseContentCache(File directory, int chunkSize, int maxChunksPerRequest)
+    {
+        this.directory = directory;
+        this.chunkSize = chunkSize;
+        this.maxChunksPerRequest = Math.max(1, maxChunksPerRequest);
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @param key : Key of the content, a new version is a new content.
+     * @param length : Length of the content.
+     * @return the entry of the content, to be released after use.
+     */
+    public synchronized Entry open(String key, long length) throws IOException
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            entry = new Entry(key, length);
+            entries.put(key, entry);
+        }
+        entry.users++;
+        return entry;
+    }
+
+    /**
+     * Release an entry. Once unused, a complete entry is moved to the cache
+     * file of the document.
+     *
+     * @return true if the content is complete.
+     */
+    public synchronized boolean release(Entry entry, File target)
+    {
+        boolean complete = entry.isComplete();
+        if (--entry.users > 0) { return complete; }
+
+        if (entries.get(entry.key) == entry)
+        {
+            entries.remove(entry.key);
+        }
+        entry.close();
+        if (complete)
+        {
+            if (entry.dataFile.renameTo(target))
+            {
+                entry.indexFile.delete();
+            }
+            else
+            {
+                Log.w(TAG, "Failed to move content : " + target);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Delete the chunks of the least recently used contents not in use until
+     * the chunks fit in the quota.
+     *
+     * @param maxBytes : Maximum size of the chunks.
+     */
+    public synchronized void trim(long maxBytes)
+    {
+        File[] files = directory.listFiles();
+        if (files == null) { return; }
+
+        Set<String> usedFiles = new HashSet<String>(entries.size() * 2);
+        for (Entry entry : entries.values())
+        {
+            usedFiles.add(entry.dataFile.getName());
+            usedFiles.add(entry.indexFile.getName());
+        }
+
+        long size = 0;
+        final Map<File, Long> lastAccesses = new HashMap<File, Long>();
+        Map<File, Long> sizes = new HashMap<File, Long>();
+        for (File file : files)
+        {
+            String fileName = file.getName();
+            if (usedFiles.contains(fileName))
+            {
+                size += Math.max(0, getCachedBytes(file));
+                continue;
+            }
+            if (!fileName.endsWith(INDEX_EXTENSION))
+            {
+                // Data file without index.
+                if (!fileName.endsWith(DATA_EXTENSION) || !getIndexFile(file).exists())
+                {
+                    file.delete();
+                }
+                continue;
+            }
+
+            long bytes = getCachedBytes(file);
+            if (bytes < 0)
+            {
+                deleteEntry(file);
+                continue;
+            }
+            size += bytes;
+            sizes.put(file, bytes);
+            lastAccesses.put(file, file.lastModified());
+        }
+        if (size <= maxBytes) { return; }
+
+        // Least recently used first.
+        List<File> indexFiles = new ArrayList<File>(sizes.keySet());
+        Collections.sort(indexFiles, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                return lastAccesses.get(lhs).compareTo(lastAccesses.get(rhs));
+            }
+        });
+        int evicted = 0;
+        for (File indexFile : indexFiles)
+        {
+            if (size <= maxBytes)
+            {
+                break;
+            }
+            deleteEntry(indexFile);
+            size -= sizes.get(indexFile);
+            evicted++;
+        }
+        Log.d(TAG, "Trim chunks : " + evicted + " contents evicted, " + size + "/" + maxBytes + " bytes");
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // INTERNALS
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * @return the size of the chunks available according to the index, -1 if
+     *         the index is invalid.
+     */
+    private static long getCachedBytes(File indexFile)
+    {
+        if (!indexFile.getName().endsWith(INDEX_EXTENSION)) { return 0; }
+
+        DataInputStream is = null;
+        try
+        {
+            is = new DataInputStream(new FileInputStream(indexFile));
+            if (is.readInt() != INDEX_VERSION) { return -1; }
+            is.readLong();
+            int indexChunkSize = is.readInt();
+            long bytes = 0;
+            int flag;
+            while ((flag = is.read()) != -1)
+            {
+                if (flag != 0)
+                {
+                    bytes += indexChunkSize;
+                }
+            }
+            return bytes;
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+        finally
+        {
+            IOUtils.closeStream(is);
+        }
+    }
+
+    private static File getIndexFile(File dataFile)
+    {
+        String fileName = dataFile.getName();
+        return new File(dataFile.getParentFile(), fileName.substring(0, fileName.length() - DATA_EXTENSION.length())
+                + INDEX_EXTENSION);
+    }
+
+    private static void deleteEntry(File indexFile)
+    {
+        String fileName = indexFile.getName();
+        new File(indexFile.getParentFile(), fileName.substring(0, fileName.length() - INDEX_EXTENSION.length())
+                + DATA_EXTENSION).delete();
+        indexFile.delete();
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // ENTRY
+    // //////////////////////////////////////////////////////////////////////
+    /**
+     * Content of a document : thread safe, chunks are fetched once.
+     */
+    public final class Entry
+    {
+        private final String key;
+
+        private final long length;
+
+        private final File dataFile;
+
+        private final File indexFile;
+
+        private final boolean[] chunks;
+
+        private int availableChunks;
+
+        private final RandomAccessFile data;
+
+        private final FileChannel channel;
+
+        /** Held while chunks are fetched. */
+        private final Object fetchLock = new Object();
+
+        private byte[] fetchBuffer;
+
+        /** Stream of the last fetch, kept open for the next chunks. */
+        private InputStream stream;
+
+        private long streamPosition;
+
+        /** The server sends the whole content whatever the range. */
+        private boolean rangesIgnored;
+
+        private int users;
+
+        private Entry(String key, long length) throws IOException
+        {
+            String fileName = StorageUtils.hash(key);
+            this.key = key;
+            this.length = length;
+            this.dataFile = new File(directory, fileName + DATA_EXTENSION);
+            this.indexFile = new File(directory, fileName + INDEX_EXTENSION);
+            this.chunks = new boolean[(int) ((length + chunkSize - 1) / chunkSize)];
+
+            directory.mkdirs();
+            if (!loadIndex())
+            {
+                dataFile.delete();
+                indexFile.delete();
+            }
+            else
+            {
+                // Last access, for the trims.
+                indexFile.setLastModified(System.currentTimeMillis());
+            }
+
+            // Never written areas don't use disk space.
+            this.data = new RandomAccessFile(dataFile, "rw");
+            data.setLength(length);
+            this.channel = data.getChannel();
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public synchronized boolean isComplete()
+        {
+            return availableChunks == chunks.length;
+        }
+
+        /**
+         * @return true if the chunk of the position is cached : reading it
+         *         sends no request.
+         */
+        public boolean isAvailable(long position)
+        {
+            return position >= length || hasChunk((int) (position / chunkSize));
+        }
+
+        /**
+         * Fetch the chunk of the position if missing, with the missing chunks
+         * following it.
+         */
+        public void load(long position, RangeSource source) throws IOException
+        {
+            if (position >= length) { return; }
+            fetch((int) (position / chunkSize), source);
+        }
+
+        /**
+         * Read the content at the position. The chunk of the position is
+         * fetched first if missing.
+         *
+         * @return the number of bytes read (never more than the end of the
+         *         chunk) or -1 at the end of the content.
+         */
+        public int read(long position, byte[] buffer, int offset, int count, RangeSource source) throws IOException
+        {
+            if (position >= length) { return -1; }
+
+            int chunk = (int) (position / chunkSize);
+            if (!hasChunk(chunk))
+            {
+                fetch(chunk, source);
+            }
+
+            long chunkEnd = Math.min(length, (long) (chunk + 1) * chunkSize);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, (int) Math.min(count, chunkEnd - position));
+            int read = 0;
+            while (byteBuffer.hasRemaining())
+            {
+                int bytes = channel.read(byteBuffer, position + read);
+                if (bytes == -1)
+                {
+                    break;
+                }
+                read += bytes;
+            }
+            if (read == 0) { throw new EOFException("Data file truncated : " + dataFile); }
+            return read;
+        }
+
+        private synchronized boolean hasChunk(int chunk)
+        {
+            return chunks[chunk];
+        }
+
+        private synchronized void setChunk(int chunk)
+        {
+            if (!chunks[chunk])
+            {
+                chunks[chunk] = true;
+                availableChunks++;
+            }
+        }
+
+        /**
+         * Fetch the chunk and the missing chunks following it. The stream of
+         * the previous fetch goes on if it's at the chunk, a new request is
+         * sent otherwise.
+         */
+        private void fetch(int firstChunk, RangeSource source) throws IOException
+        {
+            synchronized (fetchLock)
+            {
+                // Fetched by a concurrent reader.
+                if (hasChunk(firstChunk)) { return; }
+
+                int lastChunk = firstChunk;
+                while (lastChunk + 1 < chunks.length && lastChunk + 1 - firstChunk < maxChunksPerRequest
+                        && !hasChunk(lastChunk + 1))
+                {
+                    lastChunk++;
+                }
+
+                if (fetchBuffer == null)
+                {
+                    fetchBuffer = new byte[chunkSize];
+                }
+
+                // Without ranges, a new request would download the
+                // beginning again : the stream goes on to the chunk.
+                long start = (long) firstChunk * chunkSize;
+                boolean reused = stream != null
+                        && (streamPosition == start || (rangesIgnored && streamPosition < start));
+                if (!reused)
+                {
+                    closeStream();
+                }
+                try
+                {
+                    while (true)
+                    {
+                        if (stream == null)
+                        {
+                            Range range = source.open(start);
+                            stream = range.getStream();
+                            streamPosition = range.getOffset();
+                            rangesIgnored = streamPosition < start;
+                        }
+                        try
+                        {
+                            readChunks(lastChunk);
+                            return;
+                        }
+                        catch (IOException e)
+                        {
+                            closeStream();
+
+                            // The stream kept open may have timed out.
+                            if (!reused) { throw e; }
+                            reused = false;
+                        }
+                    }
+                }
+                finally
+                {
+                    // Chunks written before a failure are kept.
+                    channel.force(false);
+                    saveIndex();
+                }
+            }
+        }
+
+        /**
+         * Read the stream to the end of the last chunk : missing chunks are
+         * written, the others skipped.
+         */
+        private void readChunks(int lastChunk) throws IOException
+        {
+            long end = Math.min(length, (long) (lastChunk + 1) * chunkSize);
+            while (streamPosition < end)
+            {
+                int chunk = (int) (streamPosition / chunkSize);
+                int chunkLength = (int) Math.min(chunkSize, length - streamPosition);
+                readFully(stream, fetchBuffer, chunkLength);
+                if (!hasChunk(chunk))
+                {
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(fetchBuffer, 0, chunkLength);
+                    while (byteBuffer.hasRemaining())
+                    {
+                        channel.write(byteBuffer, streamPosition + byteBuffer.position());
+                    }
+                    setChunk(chunk);
+                }
+                streamPosition += chunkLength;
+            }
+            if (streamPosition >= length)
+            {
+                closeStream();
+            }
+        }
+
+        private void closeStream()
+        {
+            IOUtils.closeStream(stream);
+            stream = null;
+        }
+
+        private void readFully(InputStream is, byte[] buffer, int count) throws IOException
+        {
+            int read = 0;
+            while (read < count)
+            {
+                int bytes = is.read(buffer, read, count - read);
+                if (bytes == -1) { throw new EOFException("Content shorter than expected : " + key); }
+                read += bytes;
+            }
+        }
+
+        private boolean loadIndex()
+        {
+            if (!indexFile.exists() || !dataFile.exists() || dataFile.length() != length) { return false; }
+
+            DataInputStream is = null;
+            try
+            {
+                is = new DataInputStream(new FileInputStream(indexFile));
+                if (is.readInt() != INDEX_VERSION || is.readLong() != length
+                        || is.readInt() != chunkSize) { return false; }
+
+                byte[] flags = new byte[chunks.length];
+                is.readFully(flags);
+                for (int i = 0; i < flags.length; i++)
+                {
+                    if (flags[i] != 0)
+                    {
+                        setChunk(i);
+                    }
+                }
+                return true;
+            }
+            catch (IOException e)
+            {
+                Log.w(TAG, "Invalid index : " + indexFile);
+                return false;
+            }
+            finally
+            {
+                IOUtils.closeStream(is);
+            }
+        }
+
+        private void saveIndex()
+        {
+            byte[] flags = new byte[chunks.length];
+            synchronized (this)
+            {
+                for (int i = 0; i < flags.length; i++)
+                {
+                    flags[i] = (byte) (chunks[i] ? 1 : 0);
+                }
+            }
+
+            DataOutputStream os = null;
+            try
+            {
+                os = new DataOutputStream(new FileOutputStream(indexFile));
+                os.writeInt(INDEX_VERSION);
+                os.writeLong(length);
+                os.writeInt(chunkSize);
+                os.write(flags);
+            }
+            catch (IOException e)
+            {
+                Log.w(TAG, Log.getStackTraceString(e));
+            }
+            finally
+            {
+                IOUtils.closeStream(os);
+            }
+        }
+
+        private void close()
+        {
+            synchronized (fetchLock)
+            {
+                closeStream();
+            }
+            IOUtils.closeStream(data);
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////////
+    // RANGE SOURCE
+    // //////////////////////////////////////////////////////////////////////
+    public interface RangeSource
+    {
+        /**
+         * @return the content from the offset to its end, or from its
+         *         beginning if the server ignores ranges.
+         */
+        Range open(long offset) throws IOException;
+    }
+
+    /**
+     * Stream of a content from an offset.
+     */
+    public static final class Range
+    {
+        private final InputStream stream;
+
+        private final long offset;
+
+        public Range(InputStream stream, long offset)
+        {
+            this.stream = stream;
+            this.offset = offset;
+        }
+
+        public InputStream getStream()
+        {
+            return stream;
+        }
+
+        public long getOffset()
+        {
+            return offset;
+        }
+    }
+}